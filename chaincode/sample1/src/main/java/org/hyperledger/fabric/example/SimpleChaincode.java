@@ -54,10 +54,13 @@ public class SimpleChaincode extends ChaincodeBase {
             if (func.equals("delete")) {
                 return delete(stub, params);
             }
+            if (func.equals("create")) {
+                return create(stub, params);
+            }
             if (func.equals("query")) {
                 return query(stub, params);
             }
-            return newErrorResponse("Invalid invoke function name. Expecting one of: [\"invoke\", \"delete\", \"query\"]");
+            return newErrorResponse("Invalid invoke function name. Expecting one of: [\"invoke\", \"delete\", \"create\", \"query\"]");
         } catch (Throwable e) {
             return newErrorResponse(e);
         }
@@ -113,6 +116,17 @@ public class SimpleChaincode extends ChaincodeBase {
         return newSuccessResponse();
     }
 
+    // Creates an entity with an amount, or sets the amount of an existing one
+    private Response create(ChaincodeStub stub, List<String> args) {
+        if (args.size() != 2) {
+            return newErrorResponse("Incorrect number of arguments. Expecting 2");
+        }
+        String key = args.get(0);
+        int value = Integer.parseInt(args.get(1));
+        stub.putStringState(key, Integer.toString(value));
+        return newSuccessResponse();
+    }
+
     // query callback representing the query of a chaincode
     private Response query(ChaincodeStub stub, List<String> args) {
         if (args.size() != 1) {
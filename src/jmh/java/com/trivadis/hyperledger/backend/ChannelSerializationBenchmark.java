@@ -0,0 +1,73 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and deserializing the channel the way {@link SampleStore} saves and restores it, with the
+ * peers, orderers and event hubs of the sample orgs. The channel isn't initialized, no network is needed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChannelSerializationBenchmark {
+
+    private static final String CHANNEL_NAME = "foo";
+
+    private HFClient client;
+    private Channel channel;
+    private byte[] serialized;
+    private HFClient restoringClient;
+
+    @Setup
+    public void setUp() throws Exception {
+        TestConfig testConfig = TestConfig.getConfig();
+        ChannelFactory channelFactory = new ChannelFactory(testConfig, Fixtures.NETWORK_PATH);
+
+        client = HFClient.createNewInstance();
+        client.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
+        channel = client.newChannel(CHANNEL_NAME);
+        for (SampleOrg sampleOrg : testConfig.getIntegrationTestsSampleOrgs()) {
+            for (String ordererName : sampleOrg.getOrdererNames()) {
+                if (channel.getOrderers().stream().noneMatch(orderer -> orderer.getName().equals(ordererName))) {
+                    channel.addOrderer(channelFactory.newOrderer(client, sampleOrg, ordererName));
+                }
+            }
+            for (String peerName : sampleOrg.getPeerNames()) {
+                channel.addPeer(channelFactory.newPeer(client, sampleOrg, peerName));
+            }
+            for (String eventHubName : sampleOrg.getEventHubNames()) {
+                channel.addEventHub(channelFactory.newEventHub(client, sampleOrg, eventHubName));
+            }
+        }
+        serialized = channel.serializeChannel();
+
+        restoringClient = HFClient.createNewInstance();
+        restoringClient.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.shutdown(true);
+    }
+
+    @Benchmark
+    public byte[] serializeChannel() throws Exception {
+        return channel.serializeChannel();
+    }
+
+    /**
+     * A client holds one channel of a name, so the restored channel is shut down again, which is cheap
+     * as it was never initialized.
+     */
+    @Benchmark
+    public Channel deSerializeChannel() throws Exception {
+        Channel restored = restoringClient.deSerializeChannel(serialized);
+        restored.shutdown(true);
+        return restored;
+    }
+}
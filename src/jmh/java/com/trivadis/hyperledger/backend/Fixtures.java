@@ -0,0 +1,57 @@
+package com.trivadis.hyperledger.backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Files of the sample network the benchmarks work with, relative to the project directory.
+ */
+final class Fixtures {
+
+    static final String NETWORK_PATH = "network";
+    static final String ORG = "peerOrg1";
+    static final String USER = "User1@org1.example.com";
+
+    private Fixtures() {
+    }
+
+    static File userDirectory() {
+        return Paths.get(TestConfig.getConfig().getTestChannelPath(NETWORK_PATH),
+                "crypto-config/peerOrganizations/org1.example.com/users", USER, "msp").toFile();
+    }
+
+    static File privateKeyFile() {
+        return Util.findFileSk(new File(userDirectory(), "keystore"));
+    }
+
+    static File certificateFile() {
+        return new File(userDirectory(), "signcerts/" + USER + "-cert.pem");
+    }
+
+    static byte[] privateKeyBytes() throws IOException {
+        return Files.readAllBytes(privateKeyFile().toPath());
+    }
+
+    /**
+     * @return a store on a new temporary file, deleted on exit.
+     */
+    static SampleStore newStore() throws IOException {
+        return new SampleStore(newStoreFile());
+    }
+
+    /**
+     * @return a new temporary file for a store, deleted on exit.
+     */
+    static File newStoreFile() throws IOException {
+        File file = File.createTempFile("benchmark", ".properties");
+        file.deleteOnExit();
+        return file;
+    }
+
+    static SampleUser newUser(SampleStore sampleStore) throws Exception {
+        SampleOrg sampleOrg = TestConfig.getConfig().getIntegrationTestsSampleOrg(ORG);
+        return sampleStore.getMember(USER, sampleOrg.getName(), sampleOrg.getMSPID(), privateKeyFile(), certificateFile());
+    }
+}
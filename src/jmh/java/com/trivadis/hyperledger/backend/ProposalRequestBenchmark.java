@@ -0,0 +1,59 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.ChaincodeID;
+import org.hyperledger.fabric.sdk.HFClient;
+import org.hyperledger.fabric.sdk.TransactionProposalRequest;
+import org.hyperledger.fabric.sdk.TransactionRequest;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Building the transaction proposal request of a chaincode invocation, the way {@code Main.move} and the
+ * {@link TransactionSubmitter} do before endorsement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProposalRequestBenchmark {
+
+    private SampleStore sampleStore;
+    private HFClient client;
+    private ChaincodeID chaincodeID;
+
+    @Setup
+    public void setUp() throws Exception {
+        sampleStore = Fixtures.newStore();
+        client = HFClient.createNewInstance();
+        client.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
+        client.setUserContext(Fixtures.newUser(sampleStore));
+        chaincodeID = ChaincodeID.newBuilder().setName("example_cc_java").setVersion("1").build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sampleStore.close();
+    }
+
+    @Benchmark
+    public TransactionProposalRequest newTransactionProposalRequest() throws Exception {
+        Map<String, byte[]> tm2 = new HashMap<>();
+        tm2.put("HyperLedgerFabric", "TransactionProposalRequest:JavaSDK".getBytes(UTF_8));
+        tm2.put("method", "TransactionProposalRequest".getBytes(UTF_8));
+        tm2.put("result", ":)".getBytes(UTF_8));
+        ChaincodeInvocation invocation = new ChaincodeInvocation("invoke", "a", "b", "100").setTransientMap(tm2);
+
+        TransactionProposalRequest request = client.newTransactionProposalRequest();
+        request.setChaincodeID(chaincodeID);
+        request.setChaincodeLanguage(TransactionRequest.Type.JAVA);
+        request.setFcn(invocation.getFcn());
+        request.setArgs(invocation.getArgs());
+        request.setTransientMap(invocation.getTransientMap());
+        return request;
+    }
+}
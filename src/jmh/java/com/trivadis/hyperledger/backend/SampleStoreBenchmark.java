@@ -0,0 +1,48 @@
+package com.trivadis.hyperledger.backend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes of the {@link SampleStore} with 10, 1k and 100k keys, writes are written back to its
+ * file in the background as they are in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SampleStoreBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int keys;
+
+    private SampleStore sampleStore;
+    private String[] names;
+
+    @Setup
+    public void setUp() throws Exception {
+        sampleStore = Fixtures.newStore();
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key." + i;
+            sampleStore.setValue(names[i], "value of " + names[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sampleStore.close();
+    }
+
+    @Benchmark
+    public String getValue() {
+        return sampleStore.getValue(names[ThreadLocalRandom.current().nextInt(keys)]);
+    }
+
+    @Benchmark
+    public void setValue() {
+        String name = names[ThreadLocalRandom.current().nextInt(keys)];
+        sampleStore.setValue(name, name);
+    }
+}
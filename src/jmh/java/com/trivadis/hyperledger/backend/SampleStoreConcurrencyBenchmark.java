@@ -0,0 +1,128 @@
+package com.trivadis.hyperledger.backend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent writes of the {@link SampleStore} and concurrent edits and restores of one {@link SampleUser}.
+ * Run with {@code -t 1}, {@code -t 2}, {@code -t 4} ... to see the write throughput scale with the threads.
+ * <p>
+ * Doubles as the stress check of the store: every thread counts up its own keys, and at the end the store
+ * is reopened from its file and every key must hold the last count written to it. A restore must never see
+ * an edit of the user half applied. Either failure fails the run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SampleStoreConcurrencyBenchmark {
+
+    private static final int KEYS_PER_THREAD = 100;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+
+        private File file;
+        private SampleStore sampleStore;
+        private SampleUser sampleUser;
+        private final AtomicInteger threads = new AtomicInteger();
+        private final AtomicLong edits = new AtomicLong();
+        private final Map<String, String> expected = new ConcurrentHashMap<>();
+
+        @Setup
+        public void setUp() throws Exception {
+            file = Fixtures.newStoreFile();
+            sampleStore = new SampleStore(file);
+            sampleUser = Fixtures.newUser(sampleStore);
+            sampleUser.edit().account("account.0").mspId("msp.0").commit();
+        }
+
+        @TearDown
+        public void tearDown() {
+            sampleStore.close();
+            SampleStore reopened = new SampleStore(file);
+            try {
+                for (Map.Entry<String, String> entry : expected.entrySet()) {
+                    String value = reopened.getValue(entry.getKey());
+                    if (!entry.getValue().equals(value)) {
+                        throw new IllegalStateException(String.format("Lost update of %s, expected %s but found %s",
+                                entry.getKey(), entry.getValue(), value));
+                    }
+                }
+            } finally {
+                reopened.close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+
+        private Store store;
+        private String[] names;
+        private String[] written;
+        private long count;
+
+        @Setup
+        public void setUp(Store store) {
+            this.store = store;
+            int thread = store.threads.getAndIncrement();
+            names = new String[KEYS_PER_THREAD];
+            written = new String[KEYS_PER_THREAD];
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                names[i] = "stress." + thread + "." + i;
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                if (written[i] != null) {
+                    store.expected.put(names[i], written[i]);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void setValue(Store store, Writer writer) {
+        int i = (int) (writer.count % KEYS_PER_THREAD);
+        String value = Long.toString(writer.count++);
+        store.sampleStore.setValue(writer.names[i], value);
+        writer.written[i] = value;
+    }
+
+    @Benchmark
+    @Group("user")
+    @GroupThreads(2)
+    public SampleUser edit(Store store) {
+        long n = store.edits.incrementAndGet();
+        return store.sampleUser.edit().account("account." + n).mspId("msp." + n).commit();
+    }
+
+    @Benchmark
+    @Group("user")
+    @GroupThreads(2)
+    public SampleUser restore(Store store) throws Exception {
+        SampleUser sampleUser = store.sampleUser;
+        SampleUserCodec.State saved = SampleUserCodec.decode(store.sampleStore.getBytes(
+                SampleUser.toKeyValStoreName(sampleUser.getName(), sampleUser.getOrganization())));
+        check(saved.account, saved.mspId);
+        synchronized (sampleUser) {
+            sampleUser.restoreState();
+            check(sampleUser.getAccount(), sampleUser.getMspId());
+        }
+        return sampleUser;
+    }
+
+    private static void check(String account, String mspId) {
+        if (!account.substring("account.".length()).equals(mspId.substring("msp.".length()))) {
+            throw new IllegalStateException(String.format("Edit half applied: %s and %s", account, mspId));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.trivadis.hyperledger.backend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading the state of an enrolled user, and parsing the PEM of its private key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SampleUserBenchmark {
+
+    private SampleStore sampleStore;
+    private SampleUser sampleUser;
+    private byte[] privateKeyPem;
+
+    @Setup
+    public void setUp() throws Exception {
+        sampleStore = Fixtures.newStore();
+        sampleUser = Fixtures.newUser(sampleStore);
+        privateKeyPem = Fixtures.privateKeyBytes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        sampleStore.close();
+    }
+
+    @Benchmark
+    public void saveState() {
+        sampleUser.saveState();
+    }
+
+    @Benchmark
+    public SampleUser restoreState() {
+        return sampleUser.restoreState();
+    }
+
+    @Benchmark
+    public PrivateKey getPrivateKeyFromBytes() throws Exception {
+        return SampleStore.getPrivateKeyFromBytes(privateKeyPem);
+    }
+}
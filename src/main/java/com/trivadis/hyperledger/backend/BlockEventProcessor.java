@@ -0,0 +1,343 @@
+package com.trivadis.hyperledger.backend;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.*;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.TransactionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processes the blocks of a channel in order, handing every transaction to a {@link TransactionHandler}.
+ * <p>
+ * Transactions are handled in parallel on {@link TestConfig#getBlockEventParallelism()} threads, except that
+ * transactions writing the same key are handled one after the other in the order they were committed.
+ * Filtered blocks carry no write sets, their transactions are all handled one after the other. Once every
+ * transaction of a block and of the blocks before it is handled, the block number is saved as checkpoint
+ * in the {@link SampleStore}, and {@link #open} resumes with the block after it.
+ * <p>
+ * At most {@link TestConfig#getBlockEventQueueSize()} blocks past the checkpoint are held. The SDK's event
+ * thread is never blocked, it also serves the other listeners of the peers. A block further ahead is dropped
+ * and the event channel is shut down, which stops the event streams from the peers; once the handlers worked
+ * off half of the blocks held, a new event channel is opened from the first block not dispatched yet. Blocks
+ * arriving twice, from several peers, are processed once.
+ */
+public class BlockEventProcessor implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockEventProcessor.class);
+
+    // the key of transactions whose writes are unknown, they are handled in commit order
+    private static final String ANY_KEY = "";
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    /**
+     * Handles a committed transaction, valid or not. Runs on the processor's threads.
+     */
+    public interface TransactionHandler {
+        void handle(BlockEvent blockEvent, BlockEvent.TransactionEvent transactionEvent) throws Exception;
+    }
+
+    /**
+     * Opens a channel used for nothing else, delivering blocks to the listener from the start block on.
+     */
+    public interface EventSource {
+        Channel open(long startBlock, BlockListener listener) throws InvalidArgumentException, TransactionException;
+    }
+
+    private final EventSource source;
+    private final SampleStore sampleStore;
+    private final String name;
+    private final TransactionHandler handler;
+    private final int queueSize;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService reconnector;
+
+    private final Object lock = new Object();
+    private final TreeMap<Long, BlockEvent> received = new TreeMap<>();
+    private final ArrayDeque<Map.Entry<Long, CompletableFuture<Void>>> processing = new ArrayDeque<>();
+    private final Map<String, CompletableFuture<Void>> lastByKey = new HashMap<>();
+    private Channel channel;
+    // of the channel whose blocks are processed, blocks of channels shut down since are ignored
+    private int generation;
+    private boolean disconnected;
+    private long checkpoint;
+    private long next;
+    private boolean closed;
+
+    private final LongAdder transactions = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    /**
+     * Open an event channel starting with the block after the checkpoint and process its blocks.
+     *
+     * @param name       of the checkpoint, one per consumer of the channel
+     * @param client     used for nothing else than this channel
+     * @param memberOrgs the orgs whose peers joined the channel
+     */
+    public static BlockEventProcessor open(TestConfig testConfig, ChannelFactory channelFactory, HFClient client,
+                                           String channelName, Collection<SampleOrg> memberOrgs, SampleStore sampleStore,
+                                           String name, TransactionHandler handler)
+            throws InvalidArgumentException, TransactionException {
+        final boolean filtered = testConfig.isBlockEventFiltered();
+        return new BlockEventProcessor((startBlock, listener) ->
+                channelFactory.openEventChannel(client, channelName, memberOrgs, startBlock, filtered, listener),
+                sampleStore, name, handler, testConfig.getBlockEventQueueSize(), testConfig.getBlockEventParallelism());
+    }
+
+    /**
+     * @param source      opens the event channel, again after each disconnect
+     * @param name        of the checkpoint
+     * @param queueSize   blocks past the checkpoint held at most
+     * @param parallelism handler threads, 0 or less for one per processor
+     */
+    public BlockEventProcessor(EventSource source, SampleStore sampleStore, String name, TransactionHandler handler,
+                               int queueSize, int parallelism) throws InvalidArgumentException, TransactionException {
+        this.source = source;
+        this.sampleStore = sampleStore;
+        this.name = name;
+        this.handler = handler;
+        this.queueSize = Math.max(1, queueSize);
+        this.handlers = Executors.newFixedThreadPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "BlockEventProcessor-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "BlockEventProcessor-reconnect-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.checkpoint = sampleStore.getCheckpoint(name);
+        this.next = checkpoint + 1;
+        connect();
+    }
+
+    /**
+     * Open the event channel from the first block not dispatched yet.
+     */
+    private void connect() throws InvalidArgumentException, TransactionException {
+        final long start;
+        final int current;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            start = next;
+            current = ++generation;
+        }
+        Channel opened = source.open(start, blockEvent -> onBlock(current, blockEvent));
+        synchronized (lock) {
+            if (!closed && generation == current) {
+                channel = opened;
+                disconnected = false;
+                log.info(String.format("Processing blocks of channel %s from block %d", opened.getName(), start));
+                return;
+            }
+        }
+        opened.shutdown(true); // closed meanwhile
+    }
+
+    private void onBlock(int blockGeneration, BlockEvent blockEvent) {
+        final long blockNumber = blockEvent.getBlockNumber();
+        synchronized (lock) {
+            if (closed || blockGeneration != generation) {
+                return;
+            }
+            if (blockNumber < next || received.containsKey(blockNumber)) {
+                duplicates.increment();
+                return;
+            }
+            if (blockNumber > checkpoint + queueSize) {
+                // dropped, it is delivered again once reconnected
+                if (!disconnected) {
+                    disconnected = true;
+                    disconnects.increment();
+                    reconnector.execute(this::reconnect);
+                }
+                return;
+            }
+            received.put(blockNumber, blockEvent);
+            // blocks may be delivered out of order, they are dispatched in order
+            for (BlockEvent inOrder; (inOrder = received.remove(next)) != null; next++) {
+                dispatch(inOrder);
+            }
+        }
+    }
+
+    /**
+     * Shut down the event channel, wait for the handlers to catch up and open it again. Runs on the reconnector.
+     */
+    private void reconnect() {
+        Channel stopped;
+        synchronized (lock) {
+            stopped = channel;
+            channel = null;
+            generation++;
+        }
+        if (stopped != null) {
+            log.info(String.format("Pausing the blocks of channel %s at block %d, the handlers are behind", stopped.getName(), next));
+            stopped.shutdown(true);
+        }
+        try {
+            synchronized (lock) {
+                while (!closed && next - 1 - checkpoint > queueSize / 2) {
+                    lock.wait();
+                }
+            }
+            connect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn(String.format("Can't reopen the event channel of %s, trying again: %s", name, e.getMessage()));
+            try {
+                reconnector.schedule(this::reconnect, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException rejected) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Schedule the transactions of the block after the ones writing the same keys. Called in block order.
+     */
+    private void dispatch(BlockEvent blockEvent) {
+        List<CompletableFuture<Void>> handled = new ArrayList<>();
+        for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+            Set<String> keys = writtenKeys(blockEvent, transactionEvent);
+
+            List<CompletableFuture<Void>> before = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                CompletableFuture<Void> last = lastByKey.get(key);
+                if (last != null) {
+                    before.add(last);
+                }
+            }
+            final CompletableFuture<Void> done = CompletableFuture.allOf(before.toArray(new CompletableFuture[0]))
+                    .thenRunAsync(() -> handle(blockEvent, transactionEvent), handlers);
+            for (String key : keys) {
+                lastByKey.put(key, done);
+                done.whenComplete((v, e) -> {
+                    synchronized (lock) {
+                        lastByKey.remove(key, done);
+                    }
+                });
+            }
+            handled.add(done);
+        }
+
+        final long blockNumber = blockEvent.getBlockNumber();
+        CompletableFuture<Void> block = CompletableFuture.allOf(handled.toArray(new CompletableFuture[0]));
+        processing.addLast(new AbstractMap.SimpleImmutableEntry<>(blockNumber, block));
+        block.whenComplete((v, e) -> advance());
+    }
+
+    private void handle(BlockEvent blockEvent, BlockEvent.TransactionEvent transactionEvent) {
+        try {
+            handler.handle(blockEvent, transactionEvent);
+        } catch (Exception e) {
+            failures.increment();
+            log.warn(String.format("Handling transaction %s of block %d failed: %s", transactionEvent.getTransactionID(),
+                    blockEvent.getBlockNumber(), e.getMessage()));
+        } finally {
+            transactions.increment();
+        }
+    }
+
+    /**
+     * Move the checkpoint past the blocks handled completely.
+     */
+    private void advance() {
+        long saved;
+        synchronized (lock) {
+            saved = checkpoint;
+            while (!processing.isEmpty() && processing.peekFirst().getValue().isDone()) {
+                checkpoint = processing.pollFirst().getKey();
+            }
+            if (checkpoint == saved) {
+                return;
+            }
+            saved = checkpoint;
+            lock.notifyAll();
+        }
+        sampleStore.saveCheckpoint(name, saved);
+    }
+
+    private static Set<String> writtenKeys(BlockEvent blockEvent, BlockEvent.TransactionEvent transactionEvent) {
+        if (blockEvent.isFiltered()) {
+            return Collections.singleton(ANY_KEY);
+        }
+        if (!transactionEvent.isValid()) {
+            return Collections.emptySet(); // wrote nothing
+        }
+        Set<String> keys = new HashSet<>();
+        for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+            TxReadWriteSetInfo rwsetInfo = actionInfo.getTxReadWriteSet();
+            if (rwsetInfo == null) {
+                continue;
+            }
+            for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+                try {
+                    for (KvRwset.KVWrite write : nsRwsetInfo.getRwset().getWritesList()) {
+                        keys.add(nsRwsetInfo.getNamespace() + '\0' + write.getKey());
+                    }
+                } catch (InvalidProtocolBufferException e) {
+                    log.warn(String.format("Can't read write set of transaction %s in block %d: %s",
+                            transactionEvent.getTransactionID(), blockEvent.getBlockNumber(), e.getMessage()));
+                    return Collections.singleton(ANY_KEY);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the last block whose transactions are all handled, -1 if none.
+     */
+    public long getCheckpoint() {
+        synchronized (lock) {
+            return checkpoint;
+        }
+    }
+
+    public long getTransactionCount() {
+        return transactions.sum();
+    }
+
+    public long getFailedCount() {
+        return failures.sum();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return String.format("BlockEventProcessor{%s, checkpoint=%d, processing=%d, received=%d, transactions=%d, failed=%d, duplicates=%d, disconnects=%d}",
+                    name, checkpoint, processing.size(), received.size(), transactions.sum(), failures.sum(), duplicates.sum(),
+                    disconnects.sum());
+        }
+    }
+
+    @Override
+    public void close() {
+        Channel current;
+        synchronized (lock) {
+            closed = true;
+            current = channel;
+            channel = null;
+            lock.notifyAll();
+        }
+        reconnector.shutdownNow();
+        if (current != null) {
+            current.shutdown(true);
+        }
+        handlers.shutdown();
+        log.info(toString());
+    }
+}
@@ -0,0 +1,223 @@
+package com.trivadis.hyperledger.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Registers and enrolls users in bulk, for onboarding a tenant with many identities.
+ * <p>
+ * Users come from a CSV file with {@code name,org[,affiliation]} lines or a JSON array of objects with
+ * the same fields, where org is the name of a sample org such as {@code peerOrg1}. Register and enroll
+ * calls are pipelined through an {@link EnrollmentPipeline} with a bounded number of users in flight.
+ * Users that are already registered and enrolled in the {@link SampleStore} are skipped, so an
+ * interrupted run can simply be started again. The store is flushed after every batch of users.
+ * <p>
+ * Usage: {@code BulkUserProvisioner <users.csv|users.json> [concurrency] [store directory]}
+ */
+public class BulkUserProvisioner {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkUserProvisioner.class);
+
+    private static final String NETWORK_PATH = "network";
+    private static final String DEFAULT_AFFILIATION = "org1.department1";
+    private static final int DEFAULT_CONCURRENCY = 32;
+    private static final int PERSIST_BATCH_SIZE = 500;
+
+    private final EnrollmentPipeline pipeline;
+    private final SampleStore sampleStore;
+    private final int concurrency;
+    private final int persistBatchSize;
+
+    public BulkUserProvisioner(EnrollmentPipeline pipeline, SampleStore sampleStore, int concurrency, int persistBatchSize) {
+        this.pipeline = pipeline;
+        this.sampleStore = sampleStore;
+        this.concurrency = concurrency;
+        this.persistBatchSize = Math.max(1, persistBatchSize);
+    }
+
+    /**
+     * A user to provision.
+     */
+    public static final class UserRecord {
+        final String name;
+        final String org;
+        final String affiliation;
+
+        public UserRecord(String name, String org, String affiliation) {
+            this.name = name;
+            this.org = org;
+            this.affiliation = affiliation;
+        }
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    public static final class Report {
+        final long provisioned;
+        final long skipped;
+        final long failed;
+        final long elapsedNanos;
+        final long registerP99Nanos;
+        final long enrollP99Nanos;
+
+        Report(long provisioned, long skipped, long failed, long elapsedNanos, long registerP99Nanos, long enrollP99Nanos) {
+            this.provisioned = provisioned;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+            this.registerP99Nanos = registerP99Nanos;
+            this.enrollP99Nanos = enrollP99Nanos;
+        }
+
+        public double getUsersPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : provisioned / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("provisioned=%d skipped=%d failed=%d elapsed=%.1fs users/s=%.1f register p99=%.1fms enroll p99=%.1fms",
+                    provisioned, skipped, failed, elapsedNanos / 1e9, getUsersPerSecond(),
+                    registerP99Nanos / 1e6, enrollP99Nanos / 1e6);
+        }
+    }
+
+    /**
+     * Register and enroll the users. The admin of each org must be enrolled already, see
+     * {@link EnrollmentPipeline#enroll}. A user that fails is logged and counted, the others go on.
+     *
+     * @param sampleOrgs orgs by name
+     * @param users      the users to provision
+     * @return what was done and how fast
+     */
+    public Report provision(Map<String, SampleOrg> sampleOrgs, List<UserRecord> users) throws InterruptedException {
+        final long start = System.nanoTime();
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final AtomicLong provisioned = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        long skipped = 0;
+        long flushed = 0;
+
+        for (UserRecord record : users) {
+            SampleOrg sampleOrg = sampleOrgs.get(record.org);
+            if (sampleOrg == null) {
+                log.error("unknown org {} for user {}", record.org, record.name);
+                failed.incrementAndGet();
+                continue;
+            }
+            SampleUser user = sampleStore.getMember(record.name, sampleOrg.getName());
+            if (user.isRegistered() && user.isEnrolled()) {
+                skipped++;
+                continue;
+            }
+
+            inFlight.acquire();
+            // flushed here, not on the pipeline's threads, so no CA call waits for the disk
+            if (provisioned.get() - flushed >= persistBatchSize) {
+                flushed = provisioned.get();
+                sampleStore.flush();
+                log.info("provisioned {} users", flushed);
+            }
+            CompletableFuture<SampleUser> done = pipeline.enrollUser(sampleOrg, sampleOrg.getAdmin(), record.name,
+                    record.affiliation == null ? DEFAULT_AFFILIATION : record.affiliation);
+            done.whenComplete((u, e) -> {
+                inFlight.release();
+                if (e != null) {
+                    failed.incrementAndGet();
+                    log.error("could not provision user {} of {}", record.name, record.org, e);
+                } else {
+                    provisioned.incrementAndGet();
+                }
+            });
+        }
+
+        inFlight.acquire(concurrency);
+        inFlight.release(concurrency);
+        sampleStore.flush();
+
+        StepTimings timings = pipeline.getTimings();
+        return new Report(provisioned.get(), skipped, failed.get(), System.nanoTime() - start,
+                timings.getPercentile(EnrollmentPipeline.REGISTER_STEP, 99),
+                timings.getPercentile(EnrollmentPipeline.ENROLL_STEP, 99));
+    }
+
+    /**
+     * Read users from a JSON file if its name ends with {@code .json}, from a CSV file otherwise.
+     */
+    public static List<UserRecord> readUsers(File file) throws IOException {
+        List<UserRecord> users = new ArrayList<>();
+        if (file.getName().toLowerCase(Locale.ROOT).endsWith(".json")) {
+            try (JsonReader reader = Json.createReader(Files.newBufferedReader(file.toPath(), UTF_8))) {
+                JsonArray array = reader.readArray();
+                for (JsonObject user : array.getValuesAs(JsonObject.class)) {
+                    users.add(new UserRecord(user.getString("name"), user.getString("org"),
+                            user.getString("affiliation", null)));
+                }
+            }
+            return users;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || (lineNumber == 1 && line.toLowerCase(Locale.ROOT).startsWith("name,"))) {
+                    continue;
+                }
+                String[] fields = line.split("[ \t]*,[ \t]*");
+                if (fields.length < 2) {
+                    throw new IOException(String.format("Expected name,org[,affiliation] in line %d of %s", lineNumber, file));
+                }
+                users.add(new UserRecord(fields[0], fields[1], fields.length > 2 ? fields[2] : null));
+            }
+        }
+        return users;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BulkUserProvisioner <users.csv|users.json> [concurrency] [store directory]");
+            System.exit(1);
+        }
+        List<UserRecord> users = readUsers(new File(args[0]));
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONCURRENCY;
+        File storeDirectory = args.length > 2 ? new File(args[2])
+                : new File(System.getProperty("java.io.tmpdir"), "HFCSampletest-store");
+
+        TestConfig testConfig = TestConfig.getConfig();
+        Collection<SampleOrg> sampleOrgs = testConfig.getIntegrationTestsSampleOrgs();
+        EnrollmentPipeline.createCAClients(sampleOrgs);
+
+        Map<String, SampleOrg> orgsByName = new HashMap<>();
+        for (SampleOrg sampleOrg : sampleOrgs) {
+            orgsByName.put(sampleOrg.getName(), sampleOrg);
+        }
+
+        try (SampleStore sampleStore = new SampleStore(new SegmentLogStoreBackend(storeDirectory));
+             EnrollmentPipeline pipeline = new EnrollmentPipeline(testConfig, sampleStore, NETWORK_PATH, concurrency)) {
+            sampleStore.setMemberCacheBounds(concurrency * 4, TimeUnit.MINUTES.toMillis(1));
+            sampleStore.setAutoSaveMembers(false); // users are saved once, by the edit that enrolls them
+            pipeline.enroll(sampleOrgs, Collections.emptyList(), DEFAULT_AFFILIATION);
+
+            Report report = new BulkUserProvisioner(pipeline, sampleStore, concurrency, PERSIST_BATCH_SIZE)
+                    .provision(orgsByName, users);
+            log.info("bulk provisioning done: {}\n{}", report, pipeline.getTimings().report());
+        }
+    }
+}
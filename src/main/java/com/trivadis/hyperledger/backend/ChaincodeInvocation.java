@@ -0,0 +1,56 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.User;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A chaincode function call to be endorsed and ordered by a {@link TransactionSubmitter}.
+ */
+public class ChaincodeInvocation {
+    private final String fcn;
+    private final String[] args;
+    private Map<String, byte[]> transientMap = Collections.emptyMap();
+    private User userContext;
+
+    public ChaincodeInvocation(String fcn, String... args) {
+        this.fcn = fcn;
+        this.args = args;
+    }
+
+    public String getFcn() {
+        return fcn;
+    }
+
+    public String[] getArgs() {
+        return args;
+    }
+
+    public Map<String, byte[]> getTransientMap() {
+        return transientMap;
+    }
+
+    public ChaincodeInvocation setTransientMap(Map<String, byte[]> transientMap) {
+        this.transientMap = transientMap;
+        return this;
+    }
+
+    /**
+     * @return the user signing the transaction, null for the user context of the client.
+     */
+    public User getUserContext() {
+        return userContext;
+    }
+
+    public ChaincodeInvocation setUserContext(User userContext) {
+        this.userContext = userContext;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%s", fcn, Arrays.toString(args));
+    }
+}
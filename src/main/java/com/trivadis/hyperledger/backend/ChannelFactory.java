@@ -0,0 +1,221 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.*;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.TransactionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hyperledger.fabric.sdk.Channel.PeerOptions.createPeerOptions;
+
+/**
+ * Creates the orderers, peers and event hubs of the sample orgs with the connection settings of the
+ * {@link TestConfig}, and opens channels that exist already.
+ * <p>
+ * Channels opened with a {@link SampleStore} start warm: a channel saved there before with the same
+ * peers, orderers and event hubs is restored and initialized, without creating the peers, orderers and
+ * event hubs one by one. Initializing reads the current channel configuration from a peer, the channel
+ * is then saved again in the background so the store follows configuration changes for the next start.
+ */
+public class ChannelFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(ChannelFactory.class);
+
+    // saves channels to the store off the startup path
+    private static final Executor saver = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ChannelFactory-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConnectionManager connectionManager;
+
+    public ChannelFactory(TestConfig testConfig, String networkPath) {
+        this(new ConnectionManager(testConfig, networkPath));
+    }
+
+    public ChannelFactory(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    public Orderer newOrderer(HFClient client, SampleOrg sampleOrg, String ordererName) throws InvalidArgumentException {
+        return client.newOrderer(ordererName, sampleOrg.getOrdererLocation(ordererName), connectionManager.ordererProperties(ordererName));
+    }
+
+    public Peer newPeer(HFClient client, SampleOrg sampleOrg, String peerName) throws InvalidArgumentException {
+        return client.newPeer(peerName, sampleOrg.getPeerLocation(peerName), connectionManager.peerProperties(peerName));
+    }
+
+    public EventHub newEventHub(HFClient client, SampleOrg sampleOrg, String eventHubName) throws InvalidArgumentException {
+        return client.newEventHub(eventHubName, sampleOrg.getEventHubLocation(eventHubName), connectionManager.eventHubProperties(eventHubName));
+    }
+
+    /**
+     * @return false if the peers are the event source, see {@link TestConfig#isPeerEventing()}.
+     */
+    public boolean isUsingEventHubs() {
+        return !connectionManager.isPeerEventing();
+    }
+
+    /**
+     * Open a channel that was created and joined before, with the orderers of the first org and the peers
+     * of all orgs, each peer in all roles, and their event hubs unless the peers are the event source.
+     *
+     * @param memberOrgs the orgs whose peers joined the channel
+     */
+    public Channel openChannel(HFClient client, String name, Collection<SampleOrg> memberOrgs)
+            throws InvalidArgumentException, TransactionException {
+        Channel channel = client.newChannel(name);
+
+        SampleOrg ordererOrg = memberOrgs.iterator().next();
+        for (String ordererName : ordererOrg.getOrdererNames()) {
+            channel.addOrderer(newOrderer(client, ordererOrg, ordererName));
+        }
+        for (SampleOrg sampleOrg : memberOrgs) {
+            for (String peerName : sampleOrg.getPeerNames()) {
+                channel.addPeer(newPeer(client, sampleOrg, peerName), createPeerOptions().setPeerRoles(EnumSet.of(Peer.PeerRole.ENDORSING_PEER,
+                        Peer.PeerRole.LEDGER_QUERY, Peer.PeerRole.CHAINCODE_QUERY, Peer.PeerRole.EVENT_SOURCE)));
+            }
+            if (isUsingEventHubs()) {
+                for (String eventHubName : sampleOrg.getEventHubNames()) {
+                    channel.addEventHub(newEventHub(client, sampleOrg, eventHubName));
+                }
+            }
+        }
+        return channel.initialize();
+    }
+
+    /**
+     * Open a channel only to receive its blocks, from the peers of all orgs.
+     *
+     * @param memberOrgs the orgs whose peers joined the channel
+     * @param startBlock the first block the peers deliver
+     * @param filtered   true for filtered blocks, without read/write sets
+     * @param listener   registered before the channel is initialized, so it gets the start block as well
+     */
+    public Channel openEventChannel(HFClient client, String name, Collection<SampleOrg> memberOrgs, long startBlock,
+                                    boolean filtered, BlockListener listener) throws InvalidArgumentException, TransactionException {
+        Channel channel = client.newChannel(name);
+        channel.registerBlockListener(listener);
+
+        SampleOrg ordererOrg = memberOrgs.iterator().next();
+        for (String ordererName : ordererOrg.getOrdererNames()) {
+            channel.addOrderer(newOrderer(client, ordererOrg, ordererName));
+        }
+        for (SampleOrg sampleOrg : memberOrgs) {
+            for (String peerName : sampleOrg.getPeerNames()) {
+                Channel.PeerOptions peerOptions = createPeerOptions()
+                        .setPeerRoles(EnumSet.of(Peer.PeerRole.LEDGER_QUERY, Peer.PeerRole.EVENT_SOURCE))
+                        .startEvents(startBlock);
+                channel.addPeer(newPeer(client, sampleOrg, peerName),
+                        filtered ? peerOptions.registerEventsForFilteredBlocks() : peerOptions.registerEventsForBlocks());
+            }
+        }
+        return channel.initialize();
+    }
+
+    /**
+     * Restore the channel from the store if it was saved with the endpoints and connection settings of the
+     * member orgs, otherwise open it like {@link #openChannel(HFClient, String, Collection)}. Either way the
+     * channel is initialized once and saved to the store in the background.
+     *
+     * @param memberOrgs the orgs whose peers joined the channel
+     */
+    public Channel openChannel(HFClient client, String name, Collection<SampleOrg> memberOrgs, SampleStore sampleStore)
+            throws InvalidArgumentException, TransactionException {
+        final long start = System.nanoTime();
+        Channel channel = restore(client, name, sampleStore);
+        if (channel != null && endpoints(channel).equals(endpoints(memberOrgs))) {
+            channel.initialize();
+            log.info(String.format("Restored channel %s in %d ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        } else {
+            if (channel != null) {
+                log.info(String.format("Saved channel %s has other endpoints or settings than configured, opening it again", name));
+                channel.shutdown(true);
+            }
+            channel = openChannel(client, name, memberOrgs);
+            log.info(String.format("Opened channel %s in %d ms", name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+
+        final Channel opened = channel;
+        saver.execute(() -> {
+            try {
+                sampleStore.saveChannel(opened);
+            } catch (Exception e) {
+                log.warn(String.format("Could not save channel %s: %s", name, e.getMessage()));
+            }
+        });
+        return channel;
+    }
+
+    private static Channel restore(HFClient client, String name, SampleStore sampleStore) {
+        try {
+            return sampleStore.getChannel(client, name);
+        } catch (Exception e) {
+            log.warn(String.format("Could not restore channel %s: %s", name, e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * @return names, urls and connection settings of the peers, orderers and event hubs of the channel.
+     */
+    private static Set<String> endpoints(Channel channel) {
+        Set<String> endpoints = new HashSet<>();
+        for (Peer peer : channel.getPeers()) {
+            endpoints.add(endpoint("peer", peer.getName(), peer.getUrl(), peer.getProperties()));
+        }
+        for (Orderer orderer : channel.getOrderers()) {
+            endpoints.add(endpoint("orderer", orderer.getName(), orderer.getUrl(), orderer.getProperties()));
+        }
+        for (EventHub eventHub : channel.getEventHubs()) {
+            endpoints.add(endpoint("eventhub", eventHub.getName(), eventHub.getUrl(), eventHub.getProperties()));
+        }
+        return endpoints;
+    }
+
+    /**
+     * @return names, urls and connection settings of the peers, orderers and event hubs {@link #openChannel}
+     * adds for the orgs.
+     */
+    private Set<String> endpoints(Collection<SampleOrg> memberOrgs) {
+        Set<String> endpoints = new HashSet<>();
+        SampleOrg ordererOrg = memberOrgs.iterator().next();
+        for (String ordererName : ordererOrg.getOrdererNames()) {
+            endpoints.add(endpoint("orderer", ordererName, ordererOrg.getOrdererLocation(ordererName),
+                    connectionManager.ordererProperties(ordererName)));
+        }
+        for (SampleOrg sampleOrg : memberOrgs) {
+            for (String peerName : sampleOrg.getPeerNames()) {
+                endpoints.add(endpoint("peer", peerName, sampleOrg.getPeerLocation(peerName), connectionManager.peerProperties(peerName)));
+            }
+            for (String eventHubName : isUsingEventHubs() ? sampleOrg.getEventHubNames() : Collections.<String>emptySet()) {
+                endpoints.add(endpoint("eventhub", eventHubName, sampleOrg.getEventHubLocation(eventHubName),
+                        connectionManager.eventHubProperties(eventHubName)));
+            }
+        }
+        return endpoints;
+    }
+
+    private static String endpoint(String type, String name, String url, Properties properties) {
+        StringBuilder endpoint = new StringBuilder(type).append(' ').append(name).append(' ').append(url);
+        if (properties != null) {
+            Map<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<Object, Object> property : properties.entrySet()) {
+                sorted.put(String.valueOf(property.getKey()), property.getValue());
+            }
+            for (Map.Entry<String, Object> property : sorted.entrySet()) {
+                // grpc options are arrays of their arguments
+                Object value = property.getValue();
+                endpoint.append(' ').append(property.getKey()).append('=')
+                        .append(value instanceof Object[] ? Arrays.deepToString((Object[]) value) : String.valueOf(value));
+            }
+        }
+        return endpoint.toString();
+    }
+}
@@ -0,0 +1,196 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Waits for transactions of a channel to commit, all of them with one block listener and one timer.
+ * <p>
+ * Each {@link Channel#sendTransaction} waiting for its own commit event registers a listener and a timer
+ * with the SDK, and every block is checked against every listener. Here a transaction waits in a map by
+ * transaction id: every block completes the futures of its transactions with one lookup each, and
+ * transactions that don't commit in time are expired by a hashed timer wheel ticking every
+ * {@link TestConfig#getCommitTimerTick()} milliseconds. A waiting transaction costs a map entry and a wheel
+ * slot, whatever the number of transactions waiting.
+ * <p>
+ * Filtered blocks suffice, they carry the transaction ids and validation codes; the tracker listens to
+ * whatever blocks the channel's peers deliver.
+ */
+public class CommitTracker implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(CommitTracker.class);
+
+    private static final int WHEEL_SIZE = 512;
+
+    private static final class Waiter {
+        final String transactionId;
+        final long deadline;
+        final CompletableFuture<BlockEvent.TransactionEvent> future = new CompletableFuture<>();
+
+        Waiter(String transactionId, long deadline) {
+            this.transactionId = transactionId;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Channel channel;
+    private final long tickNanos;
+    private final String blockListenerHandle;
+    private final Map<String, Waiter> waiting = new ConcurrentHashMap<>();
+    private final Queue<Waiter>[] wheel;
+    private final ScheduledExecutorService timer;
+    private final long started = System.nanoTime();
+    private volatile long tick;
+
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    public CommitTracker(TestConfig testConfig, Channel channel) throws InvalidArgumentException {
+        this(channel, testConfig.getCommitTimerTick());
+    }
+
+    /**
+     * @param tickMillis milliseconds between checks for expired transactions
+     */
+    @SuppressWarnings("unchecked")
+    public CommitTracker(Channel channel, long tickMillis) throws InvalidArgumentException {
+        this.channel = channel;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.wheel = new Queue[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "CommitTracker-" + channel.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer.scheduleAtFixedRate(this::expire, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+        this.blockListenerHandle = channel.registerBlockListener(this::onBlock);
+    }
+
+    /**
+     * Wait for the transaction to commit. Call it before sending the transaction to the orderer.
+     *
+     * @return completes with the transaction's event once a block commits it, exceptionally if it is
+     * invalid or not committed within the timeout
+     */
+    public CompletableFuture<BlockEvent.TransactionEvent> track(String transactionId, long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Waiter waiter = new Waiter(transactionId, deadline);
+        if (waiting.putIfAbsent(transactionId, waiter) != null) {
+            throw new IllegalStateException(String.format("Transaction %s is tracked already", transactionId));
+        }
+        // the first tick at or after the deadline
+        wheel[slot(Math.max(tick + 1, (deadline - started + tickNanos - 1) / tickNanos))].add(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Stop waiting for the transaction, e.g. because the orderer didn't take it.
+     */
+    public void fail(String transactionId, Throwable cause) {
+        Waiter waiter = waiting.remove(transactionId);
+        if (waiter != null) {
+            waiter.future.completeExceptionally(cause);
+        }
+    }
+
+    private void onBlock(BlockEvent blockEvent) {
+        for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+            Waiter waiter = waiting.remove(transactionEvent.getTransactionID());
+            if (waiter == null) {
+                continue; // someone else's
+            }
+            if (transactionEvent.isValid()) {
+                committed.increment();
+                if (Metrics.isEnabled()) {
+                    Metrics.count("fabric.commit.events", "channel", channel.getName(), "outcome", "committed");
+                }
+                waiter.future.complete(transactionEvent);
+            } else {
+                invalid.increment();
+                if (Metrics.isEnabled()) {
+                    Metrics.count("fabric.commit.events", "channel", channel.getName(), "outcome", "invalid");
+                }
+                waiter.future.completeExceptionally(new TransactionEventException(String.format(
+                        "Transaction %s in block %d is invalid, validation code %d", transactionEvent.getTransactionID(),
+                        blockEvent.getBlockNumber(), transactionEvent.getValidationCode()), transactionEvent));
+            }
+        }
+    }
+
+    /**
+     * Expire the transactions of the slots passed since the last tick whose deadline passed, the others
+     * in these slots are a turn of the wheel or more away.
+     */
+    private void expire() {
+        final long now = System.nanoTime();
+        final long current = (now - started) / tickNanos;
+        for (long t = tick + 1; t <= current; t++) {
+            Queue<Waiter> slot = wheel[slot(t)];
+            for (int n = slot.size(); n > 0; n--) {
+                Waiter waiter = slot.poll();
+                if (waiter == null) {
+                    break;
+                }
+                if (waiter.future.isDone()) {
+                    continue;
+                }
+                if (waiter.deadline - now > 0) {
+                    slot.add(waiter);
+                } else if (waiting.remove(waiter.transactionId, waiter)) {
+                    expired.increment();
+                    if (Metrics.isEnabled()) {
+                        Metrics.count("fabric.commit.events", "channel", channel.getName(), "outcome", "expired");
+                    }
+                    waiter.future.completeExceptionally(new TimeoutException(String.format(
+                            "Transaction %s not committed within its wait time", waiter.transactionId)));
+                }
+            }
+            tick = t;
+        }
+    }
+
+    private static int slot(long tick) {
+        return (int) (tick % WHEEL_SIZE);
+    }
+
+    public int getWaitingCount() {
+        return waiting.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CommitTracker{%s, waiting=%d, committed=%d, invalid=%d, expired=%d}", channel.getName(),
+                waiting.size(), committed.sum(), invalid.sum(), expired.sum());
+    }
+
+    /**
+     * Stop listening; transactions still waiting fail.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.unregisterBlockListener(blockListenerHandle);
+        } catch (InvalidArgumentException e) {
+            log.warn(String.format("Can't unregister block listener: %s", e.getMessage()));
+        }
+        timer.shutdownNow();
+        for (Waiter waiter : waiting.values()) {
+            fail(waiter.transactionId, new CancellationException("Commit tracker closed"));
+        }
+        log.info(toString());
+    }
+}
@@ -0,0 +1,348 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.TransactionPackage.TxValidationCode;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.hyperledger.fabric.sdk.exception.TransactionEventException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps concurrent invocations touching the same keys from invalidating each other, in front of a
+ * {@link TransactionSubmitter}.
+ * <p>
+ * Fabric validates a transaction against the versions of the keys it read when it was endorsed; of two
+ * transactions endorsed concurrently on the same keys only the first one ordered commits, the other one
+ * fails with an MVCC read conflict after endorsement and ordering were done for nothing. Here a transaction
+ * waits for the transactions in flight on its keys before it is endorsed, while transactions on other keys
+ * go ahead in parallel.
+ * <p>
+ * The keys of a transaction are those read and written in the namespaces it writes to, taken from the
+ * read write set of its endorsement. They are known only once it is endorsed, so the scheduler learns per
+ * chaincode function which arguments name the keys, e.g. both accounts of {@code move a b 10}, and waits on
+ * the keys these arguments name before the next invocation of the function is endorsed. A transaction found
+ * to touch keys in flight that weren't predicted is endorsed again once the prediction covers them. Transactions
+ * invalidated by a read conflict nonetheless are endorsed and ordered again, at most {@link TestConfig#getConflictRetries()}
+ * times, after a random backoff of up to {@link TestConfig#getConflictBackoff()} milliseconds doubled with every retry.
+ * <p>
+ * Waiting for a transaction is chaining futures, no thread blocks; only registering the keys of a transaction
+ * takes a short lock, so that two transactions can't wait for each other.
+ * <p>
+ * Transactions are only kept apart from those of the same scheduler, so submitters of the same channel and
+ * chaincode, e.g. of the pooled copies of a channel, share one scheduler, see {@link #submit(TransactionSubmitter, ChaincodeInvocation)}.
+ */
+public class ConflictScheduler implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ConflictScheduler.class);
+
+    /**
+     * An argument of a chaincode function naming a key of the namespace.
+     */
+    private static final class KeyArg {
+        final String namespace;
+        final int index;
+
+        KeyArg(String namespace, int index) {
+            this.namespace = namespace;
+            this.index = index;
+        }
+    }
+
+    private final TransactionSubmitter submitter;
+    private final int maxRetries;
+    private final long backoffMillis;
+
+    private final Object lock = new Object();
+    private final Map<String, CompletableFuture<Void>> lastByKey = new ConcurrentHashMap<>();
+    private final Map<String, List<KeyArg>> keyArgs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private volatile boolean closed;
+
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder reendorsed = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+
+    /**
+     * A scheduler for the submitters given with each invocation.
+     */
+    public ConflictScheduler(TestConfig testConfig) {
+        this(null, testConfig.getConflictRetries(), testConfig.getConflictBackoff());
+    }
+
+    public ConflictScheduler(TestConfig testConfig, TransactionSubmitter submitter) {
+        this(submitter, testConfig.getConflictRetries(), testConfig.getConflictBackoff());
+    }
+
+    /**
+     * @param submitter     of the invocations submitted without one, may be null
+     * @param maxRetries    times a transaction invalidated by a read conflict is tried again
+     * @param backoffMillis longest wait before the first retry, doubled with every retry
+     */
+    public ConflictScheduler(TransactionSubmitter submitter, int maxRetries, long backoffMillis) {
+        this.submitter = submitter;
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoffMillis = Math.max(1, backoffMillis);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ConflictScheduler-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submit the invocation once the transactions in flight on its keys are done, waiting first if the
+     * maximum number of transactions is in flight.
+     *
+     * @return completes once the transaction is committed, or exceptionally if it failed, after its retries
+     * for read conflicts.
+     */
+    public CompletableFuture<TransactionSubmitter.Result> submit(ChaincodeInvocation invocation) throws InterruptedException {
+        if (submitter == null) {
+            throw new IllegalStateException("ConflictScheduler has no submitter of its own");
+        }
+        return submit(submitter, invocation);
+    }
+
+    /**
+     * Submit the invocation with one of the submitters sharing the scheduler, see {@link #submit(ChaincodeInvocation)}.
+     */
+    public CompletableFuture<TransactionSubmitter.Result> submit(TransactionSubmitter submitter, ChaincodeInvocation invocation)
+            throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("ConflictScheduler is closed");
+        }
+        submitter.acquire();
+        CompletableFuture<TransactionSubmitter.Result> result = new CompletableFuture<>();
+        CompletableFuture<TransactionSubmitter.Result> tracked = submitter.track(invocation, System.nanoTime(), result);
+        attempt(submitter, invocation, result, 0, false);
+        return tracked;
+    }
+
+    /**
+     * Endorse and order the invocation once the transactions on its predicted keys are done.
+     *
+     * @param reendorse true if the invocation was endorsed already and found to touch keys in flight
+     */
+    private void attempt(TransactionSubmitter submitter, ChaincodeInvocation invocation,
+                         CompletableFuture<TransactionSubmitter.Result> result, int retry, boolean reendorse) {
+        if (result.isDone()) { // timed out while waiting
+            return;
+        }
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final Set<String> held = predict(invocation);
+        List<CompletableFuture<Void>> before = register(held, done);
+        if (!before.isEmpty()) {
+            waited.increment();
+            if (Metrics.isEnabled()) {
+                Metrics.count("fabric.conflict", "outcome", "waited");
+            }
+        }
+        try {
+            CompletableFuture.allOf(before.toArray(new CompletableFuture[0]))
+                    .thenCompose(v -> result.isDone() // timed out while waiting, the caller was told it failed
+                            ? CompletableFuture.<Collection<ProposalResponse>>completedFuture(null)
+                            : submitter.endorseAsync(invocation))
+                    .thenAccept(successful -> {
+                        if (successful == null || result.isDone()) {
+                            release(held, done);
+                            return;
+                        }
+                        Set<String> keys = keys(successful.iterator().next());
+                        learn(invocation, keys);
+                        Set<String> unpredicted = new HashSet<>(keys);
+                        unpredicted.removeAll(held);
+                        held.addAll(unpredicted);
+                        // waiting now could close a cycle, the transaction rather starts over with the keys known up front
+                        if (!register(unpredicted, done).isEmpty() && !reendorse && predict(invocation).containsAll(keys)) {
+                            release(held, done);
+                            reendorsed.increment();
+                            if (Metrics.isEnabled()) {
+                                Metrics.count("fabric.conflict", "outcome", "reendorsed");
+                            }
+                            attempt(submitter, invocation, result, retry, true);
+                            return;
+                        }
+                        submitter.order(invocation, successful).whenComplete((r, e) -> {
+                            release(held, done);
+                            complete(submitter, invocation, result, retry, r, e);
+                        });
+                    })
+                    .exceptionally(e -> {
+                        release(held, done);
+                        result.completeExceptionally(e);
+                        return null;
+                    });
+        } catch (RuntimeException e) { // the endorser is shut down
+            release(held, done);
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void complete(TransactionSubmitter submitter, ChaincodeInvocation invocation,
+                          CompletableFuture<TransactionSubmitter.Result> result, int retry, TransactionSubmitter.Result r,
+                          Throwable e) {
+        if (e == null) {
+            result.complete(r);
+            return;
+        }
+        if (retry >= maxRetries || !isReadConflict(e) || result.isDone()) {
+            result.completeExceptionally(e);
+            return;
+        }
+        retried.increment();
+        if (Metrics.isEnabled()) {
+            Metrics.count("fabric.conflict", "outcome", "retried");
+        }
+        // jittered, so transactions that conflicted once don't conflict again
+        final long delay = ThreadLocalRandom.current().nextLong(backoffMillis << Math.min(retry, 16)) + 1;
+        log.debug(String.format("Transaction %s had a read conflict, retrying in %d ms", invocation, delay));
+        try {
+            timer.schedule(() -> attempt(submitter, invocation, result, retry + 1, false), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException rejected) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Make the transaction the last one on the keys.
+     *
+     * @return the transactions in flight on the keys before
+     */
+    private List<CompletableFuture<Void>> register(Collection<String> keys, CompletableFuture<Void> done) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<CompletableFuture<Void>> before = new ArrayList<>();
+        synchronized (lock) {
+            for (String key : keys) {
+                CompletableFuture<Void> last = lastByKey.put(key, done);
+                if (last != null && last != done && !last.isDone()) {
+                    before.add(last);
+                }
+            }
+        }
+        return before;
+    }
+
+    private void release(Collection<String> keys, CompletableFuture<Void> done) {
+        done.complete(null);
+        for (String key : keys) {
+            lastByKey.remove(key, done);
+        }
+    }
+
+    /**
+     * @return the keys named by the arguments of the invocation, as far as learned.
+     */
+    private Set<String> predict(ChaincodeInvocation invocation) {
+        Set<String> keys = new HashSet<>();
+        List<KeyArg> learned = invocation.getFcn() == null ? null : keyArgs.get(invocation.getFcn());
+        if (learned != null) {
+            final String[] args = invocation.getArgs();
+            for (KeyArg keyArg : learned) {
+                if (keyArg.index < args.length) {
+                    keys.add(keyArg.namespace + '\0' + args[keyArg.index]);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Remember which arguments of the function named the keys.
+     */
+    private void learn(ChaincodeInvocation invocation, Set<String> keys) {
+        if (invocation.getFcn() == null || keys.isEmpty()) {
+            return;
+        }
+        final String[] args = invocation.getArgs();
+        List<KeyArg> learned = new ArrayList<>();
+        for (String key : keys) {
+            int separator = key.indexOf('\0');
+            String name = key.substring(separator + 1);
+            for (int i = 0; i < args.length; i++) {
+                if (name.equals(args[i])) {
+                    learned.add(new KeyArg(key.substring(0, separator), i));
+                }
+            }
+        }
+        keyArgs.put(invocation.getFcn(), learned);
+    }
+
+    /**
+     * @return the keys read or written in the namespaces the endorsed transaction writes to.
+     */
+    private static Set<String> keys(ProposalResponse response) {
+        Set<String> keys = new HashSet<>();
+        try {
+            TxReadWriteSetInfo rwsetInfo = response.getChaincodeActionResponseReadWriteSetInfo();
+            if (rwsetInfo == null) {
+                return keys;
+            }
+            for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+                KvRwset.KVRWSet rwset = nsRwsetInfo.getRwset();
+                if (rwset.getWritesCount() == 0) {
+                    continue; // e.g. the chaincode definition every transaction reads
+                }
+                for (KvRwset.KVRead read : rwset.getReadsList()) {
+                    keys.add(nsRwsetInfo.getNamespace() + '\0' + read.getKey());
+                }
+                for (KvRwset.KVWrite write : rwset.getWritesList()) {
+                    keys.add(nsRwsetInfo.getNamespace() + '\0' + write.getKey());
+                }
+            }
+        } catch (Exception e) {
+            log.warn(String.format("Can't read the read write set of transaction %s: %s", response.getTransactionID(), e.getMessage()));
+        }
+        return keys;
+    }
+
+    private static boolean isReadConflict(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (!(cause instanceof TransactionEventException)) {
+            return false;
+        }
+        BlockEvent.TransactionEvent transactionEvent = ((TransactionEventException) cause).getTransactionEvent();
+        if (transactionEvent == null) {
+            return false;
+        }
+        int code = transactionEvent.getValidationCode();
+        return code == TxValidationCode.MVCC_READ_CONFLICT_VALUE || code == TxValidationCode.PHANTOM_READ_CONFLICT_VALUE;
+    }
+
+    /**
+     * @return number of keys with a transaction in flight.
+     */
+    public int getKeysInFlight() {
+        return lastByKey.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ConflictScheduler{keysInFlight=%d, waited=%d, reendorsed=%d, retried=%d}",
+                getKeysInFlight(), waited.sum(), reendorsed.sum(), retried.sum());
+    }
+
+    /**
+     * Stop taking invocations. Retries already scheduled still run, transactions in flight are not waited
+     * for, see {@link TransactionSubmitter#close()}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdown();
+        try {
+            timer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info(toString());
+    }
+}
@@ -0,0 +1,103 @@
+package com.trivadis.hyperledger.backend;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Settings and pooling of the gRPC connections to peers, orderers and event hubs.
+ * <p>
+ * Every endpoint gets the keep alive, HTTP/2 flow control window and maximum message size of the
+ * {@link TestConfig}, each of them can be set for a single endpoint by appending its name to the property,
+ * e.g. {@code org.hyperledger.fabric.sdktest.FlowControlWindow.peer0.org1.example.com}.
+ * <p>
+ * The SDK opens one connection per {@link org.hyperledger.fabric.sdk.Peer}, {@link org.hyperledger.fabric.sdk.Orderer}
+ * and {@link org.hyperledger.fabric.sdk.EventHub}, and these belong to a single channel, so connections can't be
+ * shared between channels or handed to the SDK. Instead a {@link Pool} holds {@link TestConfig#getConnectionPoolSize()}
+ * copies of a channel, each with its own connections, and spreads the requests over them so a busy client isn't
+ * limited to the concurrent streams of one connection per endpoint. With {@link TestConfig#isPeerEventing()} events
+ * come from the peers themselves instead of from an extra event hub connection to each of them.
+ */
+public class ConnectionManager {
+
+    private static final String OPTION = "grpc.NettyChannelBuilderOption.";
+
+    private final TestConfig testConfig;
+    private final String networkPath;
+
+    public ConnectionManager(TestConfig testConfig, String networkPath) {
+        this.testConfig = testConfig;
+        this.networkPath = networkPath;
+    }
+
+    public Properties peerProperties(String peerName) {
+        Properties peerProperties = testConfig.getPeerProperties(peerName, networkPath); //test properties for peer.. if any.
+        if (peerProperties == null) {
+            peerProperties = new Properties();
+        }
+        return configure(peerProperties, peerName);
+    }
+
+    public Properties ordererProperties(String ordererName) {
+        return configure(testConfig.getOrdererProperties(ordererName, networkPath), ordererName);
+    }
+
+    public Properties eventHubProperties(String eventHubName) {
+        return configure(testConfig.getEventHubProperties(eventHubName, networkPath), eventHubName);
+    }
+
+    private Properties configure(Properties properties, String endpointName) {
+        // pinging more often than every 5 minutes would require changes to server side to accept faster ping rates.
+        properties.put(OPTION + "keepAliveTime", new Object[]{testConfig.getKeepAliveTime(endpointName), TimeUnit.MILLISECONDS});
+        properties.put(OPTION + "keepAliveTimeout", new Object[]{testConfig.getKeepAliveTimeout(endpointName), TimeUnit.MILLISECONDS});
+        properties.put(OPTION + "keepAliveWithoutCalls", new Object[]{true});
+        properties.put(OPTION + "flowControlWindow", testConfig.getFlowControlWindow(endpointName));
+        properties.put(OPTION + "maxInboundMessageSize", testConfig.getMaxInboundMessageSize(endpointName));
+        return properties;
+    }
+
+    public int getPoolSize() {
+        return Math.max(1, testConfig.getConnectionPoolSize());
+    }
+
+    public boolean isPeerEventing() {
+        return testConfig.isPeerEventing();
+    }
+
+    /**
+     * Members using their own connections, e.g. copies of a channel.
+     */
+    public static final class Pool<T> {
+        private final List<T> members;
+        private final AtomicInteger next = new AtomicInteger();
+
+        public Pool(List<T> members) {
+            if (members.isEmpty()) {
+                throw new IllegalArgumentException("Pool needs a member");
+            }
+            this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        }
+
+        /**
+         * @return the members one after the other.
+         */
+        public T next() {
+            return members.get(Math.floorMod(next.getAndIncrement(), members.size()));
+        }
+
+        /**
+         * @return always the same member for the same key, so state kept per member, like cached queries,
+         * isn't kept by every member.
+         */
+        public T forKey(Object key) {
+            return members.get(Math.floorMod(key.hashCode(), members.size()));
+        }
+
+        public List<T> getMembers() {
+            return members;
+        }
+    }
+}
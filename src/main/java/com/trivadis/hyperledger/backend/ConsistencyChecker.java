@@ -0,0 +1,122 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Groups endorsements by what they endorse and picks a group that satisfies the endorsement policy.
+ * <p>
+ * Unlike {@link org.hyperledger.fabric.sdk.SDKUtils#getProposalConsistencySets} the proposal response
+ * payload of each endorsement, which holds its read/write set, is hashed once and grouped by digest. The
+ * endorsements are looked at one after the other and the check stops as soon as a group satisfies the
+ * policy, or as soon as the endorsements left can't make any group satisfy it. Only verified and
+ * successful endorsements count; their signatures are checked when they arrive, see
+ * {@link ProposalResponse#isVerified()}.
+ */
+public class ConsistencyChecker {
+
+    private final EndorsementPlanner planner;
+
+    /**
+     * @param planner to tell if a group satisfies the policy, null if all endorsements must be consistent
+     */
+    public ConsistencyChecker(EndorsementPlanner planner) {
+        this.planner = planner;
+    }
+
+    /**
+     * @return consistent endorsements that satisfy the policy, or null if there aren't enough good
+     * endorsements for that.
+     * @throws ProposalException if the endorsements are inconsistent and no group can satisfy the policy
+     */
+    public Collection<ProposalResponse> check(Collection<ProposalResponse> responses) throws ProposalException {
+        List<ProposalResponse> good = new ArrayList<>(responses.size());
+        for (ProposalResponse response : responses) {
+            if (response.isVerified() && response.getStatus() == ProposalResponse.Status.SUCCESS) {
+                good.add(response);
+            }
+        }
+
+        final MessageDigest digest = sha256();
+        final Map<ByteBuffer, List<ProposalResponse>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < good.size(); i++) {
+            ProposalResponse response = good.get(i);
+            digest.update(response.getProposalResponse().getPayload().asReadOnlyByteBuffer());
+            List<ProposalResponse> group = groups.computeIfAbsent(ByteBuffer.wrap(digest.digest()), d -> new ArrayList<>());
+            group.add(response);
+
+            if (planner == null) {
+                if (groups.size() > 1) {
+                    throw inconsistent(groups);
+                }
+                continue;
+            }
+            if (planner.isSatisfiedBy(peersOf(group))) {
+                return group;
+            }
+            if (!satisfiable(groups.values(), good.subList(i + 1, good.size()))) {
+                break;
+            }
+        }
+
+        if (planner == null) {
+            return good.size() == responses.size() && !good.isEmpty() ? good : null;
+        }
+        if (groups.size() > 1) {
+            throw inconsistent(groups);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if one of the groups, or a new one, could still satisfy the policy with the endorsements left.
+     */
+    private boolean satisfiable(Collection<List<ProposalResponse>> groups, List<ProposalResponse> left) {
+        List<Peer> leftPeers = peersOf(left);
+        if (planner.isSatisfiedBy(leftPeers)) {
+            return true;
+        }
+        for (List<ProposalResponse> group : groups) {
+            List<Peer> peers = peersOf(group);
+            peers.addAll(leftPeers);
+            if (planner.isSatisfiedBy(peers)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ProposalException inconsistent(Map<ByteBuffer, List<ProposalResponse>> groups) {
+        List<List<String>> peers = new ArrayList<>();
+        for (List<ProposalResponse> group : groups.values()) {
+            List<String> names = new ArrayList<>();
+            for (ProposalResponse response : group) {
+                names.add(response.getPeer().getName());
+            }
+            peers.add(names);
+        }
+        return new ProposalException(String.format("Inconsistent endorsements, peers agreeing with each other: %s", peers));
+    }
+
+    private static List<Peer> peersOf(Collection<ProposalResponse> responses) {
+        List<Peer> peers = new ArrayList<>(responses.size());
+        for (ProposalResponse response : responses) {
+            peers.add(response.getPeer());
+        }
+        return peers;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.*;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the endorsements of a transaction proposal, done as soon as enough consistent and verified
+ * endorsements satisfy the endorsement policy.
+ * <p>
+ * A proposal sent with {@link Channel#sendTransactionProposal} returns only once every peer answered or
+ * the proposal wait time passed, and endorsements of separate proposals can't be combined as each one
+ * has its own transaction id. So instead of the configured {@link TestConfig#getProposalWaitTime()} a
+ * proposal waits twice the {@link TestConfig#getEndorsementWaitPercentile()} percentile of recent
+ * endorsement rounds, and {@link TestConfig#getEndorsementSparePeers()} spare peers can be asked along
+ * with the planned ones. A peer that is slower than that doesn't hold up the transaction as long as the
+ * others satisfy the policy, otherwise the proposal is endorsed again without it and with twice the wait.
+ * <p>
+ * Only peers that can't be reached in time or answer successfully with a signature that doesn't verify count
+ * as failing. A peer failing {@link TestConfig#getPeerEjectFailures()} transactions in a row isn't planned for
+ * {@link TestConfig#getPeerEjectCooldown()} milliseconds, unless the policy can't be satisfied without it. A
+ * chaincode error is an answer, it fails the transaction at once with the peer's message.
+ * <p>
+ * Without an {@link EndorsementPlanner} all endorsing peers are asked and all of them must endorse.
+ */
+public class EndorsementCollector {
+
+    private static final Logger log = LoggerFactory.getLogger(EndorsementCollector.class);
+
+    private static final long MIN_WAIT_MILLIS = 500;
+
+    private final Channel channel;
+    private final EndorsementPlanner planner;
+    private final long proposalWaitTime;
+    private final double waitPercentile;
+    private final int sparePeers;
+    private final ConsistencyChecker checker;
+    private final int ejectFailures;
+    private final long ejectCooldownNanos;
+    private final Map<String, PeerHealth> health = new ConcurrentHashMap<>();
+
+    private final LatencyWindow rounds = new LatencyWindow();
+    private final LongAdder stragglers = new LongAdder();
+
+    public EndorsementCollector(TestConfig testConfig, Channel channel, EndorsementPlanner planner) {
+        this(channel, planner, testConfig.getProposalWaitTime(), testConfig.getEndorsementWaitPercentile(),
+                testConfig.getEndorsementSparePeers(), testConfig.getPeerEjectFailures(), testConfig.getPeerEjectCooldown());
+    }
+
+    /**
+     * @param proposalWaitTime    milliseconds to wait for a proposal at most
+     * @param waitPercentile      percentile of recent endorsement rounds a proposal waits twice as long as
+     * @param sparePeers          peers asked in addition to the planned ones
+     * @param ejectFailures       failures in a row after which a peer is ejected
+     * @param ejectCooldownMillis how long an ejected peer isn't planned
+     */
+    public EndorsementCollector(Channel channel, EndorsementPlanner planner, long proposalWaitTime, double waitPercentile,
+                                int sparePeers, int ejectFailures, long ejectCooldownMillis) {
+        this.channel = channel;
+        this.planner = planner;
+        this.proposalWaitTime = proposalWaitTime;
+        this.waitPercentile = waitPercentile;
+        this.sparePeers = sparePeers;
+        this.checker = new ConsistencyChecker(planner);
+        this.ejectFailures = ejectFailures;
+        this.ejectCooldownNanos = TimeUnit.MILLISECONDS.toNanos(ejectCooldownMillis);
+    }
+
+    /**
+     * Failures in a row of a peer, kept across transactions.
+     */
+    private final class PeerHealth {
+        private final String name;
+        private int consecutiveFailures;
+        private long ejectedUntil;
+        private boolean ejected;
+
+        PeerHealth(String name) {
+            this.name = name;
+        }
+
+        synchronized boolean isEjected(long now) {
+            return ejected && now - ejectedUntil < 0;
+        }
+
+        synchronized void success() {
+            consecutiveFailures = 0;
+            ejected = false;
+        }
+
+        synchronized void failure(long now, String reason) {
+            if (++consecutiveFailures >= ejectFailures && !isEjected(now)) {
+                ejected = true;
+                ejectedUntil = now + ejectCooldownNanos;
+                log.warn(String.format("Ejecting peer %s for %d ms after %d failures, last: %s", name,
+                        TimeUnit.NANOSECONDS.toMillis(ejectCooldownNanos), consecutiveFailures, reason));
+            }
+        }
+    }
+
+    private PeerHealth health(Peer peer) {
+        return health.computeIfAbsent(peer.getName(), PeerHealth::new);
+    }
+
+    /**
+     * Endorse the proposal.
+     *
+     * @param request the proposal, its proposal wait time is set here
+     * @return consistent endorsements satisfying the policy
+     * @throws ProposalException if the peers left can't satisfy the policy or endorsed inconsistently
+     */
+    public Collection<ProposalResponse> collect(TransactionProposalRequest request) throws ProposalException, InvalidArgumentException {
+        final Collection<Peer> endorsers = channel.getPeers(EnumSet.of(Peer.PeerRole.ENDORSING_PEER));
+        final Set<Peer> failedPeers = new HashSet<>();
+        for (int attempt = 0; ; attempt++) {
+            final Collection<Peer> peers;
+            try {
+                peers = planner == null ? endorsers : plan(endorsers, failedPeers);
+            } catch (IllegalStateException e) {
+                throw new ProposalException(String.format("Endorsement of %s failed on peers %s", describe(request), failedPeers), e);
+            }
+            request.setProposalWaitTime(planner == null ? proposalWaitTime : waitTime(attempt));
+
+            final long start = System.nanoTime();
+            Collection<ProposalResponse> responses = channel.sendTransactionProposal(request, peers);
+            final long elapsed = System.nanoTime() - start;
+            if (Metrics.isEnabled()) {
+                Metrics.record("fabric.proposal.send", elapsed, "channel", channel.getName(),
+                        "function", String.valueOf(request.getFcn()));
+            }
+
+            ProposalResponse failure = null;
+            ProposalResponse rejection = null;
+            final long now = System.nanoTime();
+            for (ProposalResponse response : responses) {
+                if (Metrics.isEnabled()) {
+                    Metrics.count("fabric.proposal.responses", "channel", channel.getName(), "peer", response.getPeer().getName(),
+                            "status", response.isVerified() ? response.getStatus().name() : "UNVERIFIED");
+                }
+                final boolean reached = response.getProposalResponse() != null;
+                if (reached && response.getStatus() != ProposalResponse.Status.SUCCESS) {
+                    rejection = response; // a chaincode error is an answer, the SDK doesn't verify it
+                } else if (reached && response.isVerified()) {
+                    health(response.getPeer()).success();
+                } else {
+                    failure = response;
+                    failedPeers.add(response.getPeer());
+                    health(response.getPeer()).failure(now, reached ? "response not verified" : response.getMessage());
+                }
+            }
+            if (rejection != null) {
+                throw new ProposalException(String.format("Endorsement of %s failed on peer %s: %s",
+                        describe(request), rejection.getPeer().getName(), rejection.getMessage()));
+            }
+            if (planner == null && failure != null) {
+                throw new ProposalException(String.format("Endorsement of %s failed on peer %s: %s",
+                        describe(request), failure.getPeer().getName(), failure.getMessage()));
+            }
+            if (failure == null) {
+                rounds.record(elapsed); // a round cut short by the wait time would only make the next wait shorter
+            }
+
+            final Collection<ProposalResponse> endorsed;
+            final long checked = System.nanoTime();
+            try {
+                endorsed = checker.check(responses);
+            } catch (ProposalException e) {
+                throw new ProposalException(String.format("Endorsement of %s failed: %s", describe(request), e.getMessage()), e);
+            } finally {
+                if (Metrics.isEnabled()) {
+                    Metrics.record("fabric.consistency.check", System.nanoTime() - checked, "channel", channel.getName());
+                }
+            }
+            if (endorsed != null) {
+                if (failure != null) {
+                    stragglers.increment();
+                }
+                return endorsed;
+            }
+            if (failure == null) {
+                throw new ProposalException(String.format("Endorsements of %s by %s don't satisfy the endorsement policy",
+                        describe(request), peers));
+            }
+            log.warn(String.format("Endorsement of %s failed on peer %s: %s, trying other peers",
+                    describe(request), failure.getPeer().getName(), failure.getMessage()));
+        }
+    }
+
+    /**
+     * Plan without the peers failed on this transaction and without ejected peers, unless the policy needs
+     * them.
+     */
+    private Collection<Peer> plan(Collection<Peer> endorsers, Set<Peer> failedPeers) {
+        final long now = System.nanoTime();
+        Set<Peer> excluded = new HashSet<>(failedPeers);
+        for (Peer peer : endorsers) {
+            PeerHealth peerHealth = health.get(peer.getName());
+            if (peerHealth != null && peerHealth.isEjected(now)) {
+                excluded.add(peer);
+            }
+        }
+        if (excluded.size() > failedPeers.size()) {
+            try {
+                return planner.plan(endorsers, excluded, sparePeers);
+            } catch (IllegalStateException e) {
+                // not without the ejected peers
+            }
+        }
+        return planner.plan(endorsers, failedPeers, sparePeers);
+    }
+
+    /**
+     * @return milliseconds to wait for the proposal, doubled with every attempt.
+     */
+    private long waitTime(int attempt) {
+        long percentile = rounds.percentile(waitPercentile);
+        if (percentile == 0) {
+            return proposalWaitTime; // nothing to go by yet
+        }
+        long wait = Math.max(MIN_WAIT_MILLIS, TimeUnit.NANOSECONDS.toMillis(percentile) * 2) << Math.min(attempt, 16);
+        return Math.min(proposalWaitTime, wait);
+    }
+
+    private static String describe(TransactionProposalRequest request) {
+        return String.format("%s%s", request.getFcn(), request.getArgs());
+    }
+
+    /**
+     * @return number of transactions that didn't wait for a slow or failing peer.
+     */
+    public long getStragglerCount() {
+        return stragglers.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EndorsementCollector{wait=%dms, stragglers=%d}", waitTime(0), getStragglerCount());
+    }
+}
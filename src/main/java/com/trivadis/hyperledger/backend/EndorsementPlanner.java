@@ -0,0 +1,268 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.Peer;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the smallest set of peers whose endorsements satisfy a chaincode endorsement policy, instead of
+ * sending every proposal to all peers of the channel.
+ * <p>
+ * The policy is read from the same YAML file that is used to instantiate the chaincode. It is reduced
+ * to its minimal alternatives, each one the number of endorsements needed per MSP, for example
+ * {@code {Org1MSP=1}} or {@code {Org2MSP=1}} for a one-of-two-orgs policy. A plan takes the cheapest
+ * alternative the available peers can satisfy, and rotates over equally cheap alternatives and over the
+ * peers of an org so the load is spread. Peers endorse with their member identity, so only
+ * {@code member} and {@code peer} roles can be satisfied by them.
+ */
+public class EndorsementPlanner {
+
+    private static final Pattern N_OF = Pattern.compile("^(\\d+)-of$");
+
+    private final List<Map<String, Integer>> alternatives;
+    private final Map<String, String> mspIdByPeerName;
+    private final AtomicInteger rotation = new AtomicInteger();
+    private final Map<String, AtomicInteger> peerRotation = new ConcurrentHashMap<>();
+
+    EndorsementPlanner(List<Map<String, Integer>> alternatives, Map<String, String> mspIdByPeerName) {
+        this.alternatives = alternatives;
+        this.mspIdByPeerName = mspIdByPeerName;
+    }
+
+    /**
+     * @param policyFile the chaincode endorsement policy in YAML
+     * @param sampleOrgs the orgs, to know which MSP each peer belongs to
+     */
+    public static EndorsementPlanner fromYamlFile(File policyFile, Collection<SampleOrg> sampleOrgs) throws IOException {
+        final Map<?, ?> yaml;
+        try (InputStream in = Files.newInputStream(policyFile.toPath())) {
+            yaml = (Map<?, ?>) new Yaml().load(in);
+        }
+        if (yaml == null || !(yaml.get("identities") instanceof Map) || !(yaml.get("policy") instanceof Map)) {
+            throw new IOException(String.format("Expected identities and policy in %s", policyFile));
+        }
+
+        Map<String, String[]> identities = new HashMap<>();
+        for (Map.Entry<?, ?> identity : ((Map<?, ?>) yaml.get("identities")).entrySet()) {
+            Map<?, ?> role = (Map<?, ?>) ((Map<?, ?>) identity.getValue()).get("role");
+            if (role == null) {
+                throw new IOException(String.format("Identity %s has no role in %s", identity.getKey(), policyFile));
+            }
+            identities.put(String.valueOf(identity.getKey()), new String[]{String.valueOf(role.get("mspId")), String.valueOf(role.get("name"))});
+        }
+
+        Map<String, String> mspIdByPeerName = new HashMap<>();
+        for (SampleOrg sampleOrg : sampleOrgs) {
+            for (String peerName : sampleOrg.getPeerNames()) {
+                mspIdByPeerName.put(peerName, sampleOrg.getMSPID());
+            }
+        }
+
+        return new EndorsementPlanner(parse((Map<?, ?>) yaml.get("policy"), identities, policyFile), mspIdByPeerName);
+    }
+
+    /**
+     * Reduce a policy element to the ways it can be satisfied, each one the endorsements needed per MSP.
+     */
+    private static List<Map<String, Integer>> parse(Map<?, ?> element, Map<String, String[]> identities, File policyFile) throws IOException {
+        if (element.size() != 1) {
+            throw new IOException(String.format("Expected one of signed-by or <n>-of, got %s in %s", element.keySet(), policyFile));
+        }
+        Map.Entry<?, ?> entry = element.entrySet().iterator().next();
+        String key = String.valueOf(entry.getKey());
+
+        if ("signed-by".equals(key)) {
+            String[] identity = identities.get(String.valueOf(entry.getValue()));
+            if (identity == null) {
+                throw new IOException(String.format("Unknown identity %s in %s", entry.getValue(), policyFile));
+            }
+            if (!"member".equals(identity[1]) && !"peer".equals(identity[1])) {
+                return Collections.emptyList(); // peers don't sign as admin or client
+            }
+            return Collections.singletonList(Collections.singletonMap(identity[0], 1));
+        }
+
+        Matcher nOf = N_OF.matcher(key);
+        if (!nOf.matches() || !(entry.getValue() instanceof List)) {
+            throw new IOException(String.format("Expected one of signed-by or <n>-of, got %s in %s", key, policyFile));
+        }
+        int n = Integer.parseInt(nOf.group(1));
+        List<List<Map<String, Integer>>> children = new ArrayList<>();
+        for (Object child : (List<?>) entry.getValue()) {
+            children.add(parse((Map<?, ?>) child, identities, policyFile));
+        }
+        List<Map<String, Integer>> result = new ArrayList<>();
+        choose(children, n, 0, Collections.emptyMap(), result);
+        return minimal(result);
+    }
+
+    /**
+     * Add every way of satisfying n of the children from index start on, on top of what is already needed.
+     */
+    private static void choose(List<List<Map<String, Integer>>> children, int n, int start, Map<String, Integer> needed,
+                               List<Map<String, Integer>> result) {
+        if (n == 0) {
+            result.add(needed);
+            return;
+        }
+        for (int i = start; i <= children.size() - n; i++) {
+            for (Map<String, Integer> alternative : children.get(i)) {
+                Map<String, Integer> merged = new TreeMap<>(needed);
+                // a signature can only count once, so needs of different children add up
+                alternative.forEach((mspId, count) -> merged.merge(mspId, count, Integer::sum));
+                choose(children, n - 1, i + 1, merged, result);
+            }
+        }
+    }
+
+    /**
+     * Drop duplicates and alternatives needing more of every MSP than another one, order by endorsements.
+     */
+    private static List<Map<String, Integer>> minimal(List<Map<String, Integer>> alternatives) {
+        List<Map<String, Integer>> sorted = new ArrayList<>(new LinkedHashSet<>(alternatives));
+        sorted.sort(Comparator.comparingInt(EndorsementPlanner::total));
+        List<Map<String, Integer>> result = new ArrayList<>();
+        for (Map<String, Integer> candidate : sorted) {
+            boolean dominated = false;
+            for (Map<String, Integer> kept : result) {
+                if (covers(candidate, kept)) {
+                    dominated = true;
+                    break;
+                }
+            }
+            if (!dominated) {
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    private static boolean covers(Map<String, Integer> candidate, Map<String, Integer> kept) {
+        for (Map.Entry<String, Integer> need : kept.entrySet()) {
+            if (candidate.getOrDefault(need.getKey(), 0) < need.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int total(Map<String, Integer> alternative) {
+        int total = 0;
+        for (int count : alternative.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Plan the peers to send a proposal to.
+     *
+     * @param peers    the endorsing peers of the channel
+     * @param excluded peers not to use, e.g. because they failed before
+     * @return the smallest set of peers that satisfies the policy
+     * @throws IllegalStateException if the peers left can't satisfy the policy
+     */
+    public Collection<Peer> plan(Collection<Peer> peers, Collection<Peer> excluded) {
+        return plan(peers, excluded, 0);
+    }
+
+    /**
+     * Plan the peers to send a proposal to, with spare peers in case one of the planned peers is slow.
+     * Spares are taken from the orgs of the plan first, as they can stand in for a planned peer.
+     *
+     * @param spares number of peers to add to the smallest set, if there are that many left
+     */
+    public Collection<Peer> plan(Collection<Peer> peers, Collection<Peer> excluded, int spares) {
+        Map<String, List<Peer>> available = new TreeMap<>();
+        for (Peer peer : peers) {
+            String mspId = mspIdByPeerName.get(peer.getName());
+            if (mspId != null && !excluded.contains(peer)) {
+                available.computeIfAbsent(mspId, m -> new ArrayList<>()).add(peer);
+            }
+        }
+
+        List<Map<String, Integer>> cheapest = new ArrayList<>();
+        for (Map<String, Integer> alternative : alternatives) {
+            if (!cheapest.isEmpty() && total(alternative) > total(cheapest.get(0))) {
+                break;
+            }
+            if (feasible(alternative, available)) {
+                cheapest.add(alternative);
+            }
+        }
+        if (cheapest.isEmpty()) {
+            throw new IllegalStateException(String.format("No set of the peers %s satisfies the endorsement policy %s",
+                    available, alternatives));
+        }
+
+        Map<String, Integer> chosen = cheapest.get((rotation.getAndIncrement() & Integer.MAX_VALUE) % cheapest.size());
+        List<Peer> plan = new ArrayList<>();
+        for (Map.Entry<String, Integer> need : chosen.entrySet()) {
+            List<Peer> orgPeers = available.get(need.getKey());
+            // rotated per org, turns of the alternatives would otherwise always pick the same peers
+            final int turn = peerRotation.computeIfAbsent(need.getKey(), m -> new AtomicInteger())
+                    .getAndAdd(need.getValue()) & Integer.MAX_VALUE;
+            for (int i = 0; i < need.getValue(); i++) {
+                plan.add(orgPeers.get((turn + i) % orgPeers.size()));
+            }
+        }
+
+        if (spares > 0) {
+            List<Peer> candidates = new ArrayList<>();
+            for (String mspId : chosen.keySet()) {
+                candidates.addAll(available.get(mspId));
+            }
+            for (Map.Entry<String, List<Peer>> org : available.entrySet()) {
+                if (!chosen.containsKey(org.getKey())) {
+                    candidates.addAll(org.getValue());
+                }
+            }
+            candidates.removeAll(plan);
+            plan.addAll(candidates.subList(0, Math.min(spares, candidates.size())));
+        }
+        return plan;
+    }
+
+    /**
+     * @return true if endorsements by these peers satisfy the policy.
+     */
+    public boolean isSatisfiedBy(Collection<Peer> endorsers) {
+        Map<String, Integer> endorsements = new HashMap<>();
+        for (Peer peer : endorsers) {
+            String mspId = mspIdByPeerName.get(peer.getName());
+            if (mspId != null) {
+                endorsements.merge(mspId, 1, Integer::sum);
+            }
+        }
+        for (Map<String, Integer> alternative : alternatives) {
+            if (covers(endorsements, alternative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean feasible(Map<String, Integer> alternative, Map<String, List<Peer>> available) {
+        for (Map.Entry<String, Integer> need : alternative.entrySet()) {
+            List<Peer> orgPeers = available.get(need.getKey());
+            if (orgPeers == null || orgPeers.size() < need.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EndorsementPlanner%s", alternatives);
+    }
+}
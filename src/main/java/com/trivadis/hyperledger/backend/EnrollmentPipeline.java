@@ -0,0 +1,251 @@
+package com.trivadis.hyperledger.backend;
+
+import org.bouncycastle.openssl.PEMWriter;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.hyperledger.fabric_ca.sdk.EnrollmentRequest;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.hyperledger.fabric_ca.sdk.HFCAInfo;
+import org.hyperledger.fabric_ca.sdk.RegistrationRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.StringWriter;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Enrolls the admins and registers and enrolls the users of all sample orgs against their Fabric CAs.
+ * <p>
+ * Every org is handled independently, and within an org the TLS enrollment, the CA info call, the admin
+ * enrollment and loading the peer admin run side by side. Each user is registered once the admin is
+ * enrolled and enrolled once it is registered, independent of the other users. All CA calls share one
+ * bounded executor, and the time of every step is recorded in {@link #getTimings()}.
+ */
+public class EnrollmentPipeline implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(EnrollmentPipeline.class);
+
+    private static final String ADMIN_NAME = "admin";
+    private static final String ADMIN_SECRET = "adminpw";
+
+    public static final String REGISTER_STEP = "user register";
+    public static final String ENROLL_STEP = "user enroll";
+
+    private final TestConfig testConfig;
+    private final SampleStore sampleStore;
+    private final String networkPath;
+    private final ExecutorService executor;
+    private final StepTimings timings = new StepTimings();
+
+    /**
+     * @param parallelism maximum number of CA calls in flight
+     */
+    public EnrollmentPipeline(TestConfig testConfig, SampleStore sampleStore, String networkPath, int parallelism) {
+        this.testConfig = testConfig;
+        this.sampleStore = sampleStore;
+        this.networkPath = networkPath;
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "EnrollmentPipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Enroll the admin and the given users of every org and set them on the org.
+     *
+     * @param sampleOrgs  the orgs, each one with its CA client set
+     * @param userNames   users to register and enroll in every org
+     * @param affiliation affiliation the users are registered with
+     * @return client TLS properties by org name, empty if not running TLS
+     * @throws Exception the first failure of any step
+     */
+    public Map<String, Properties> enroll(Collection<SampleOrg> sampleOrgs, Collection<String> userNames,
+                                          String affiliation) throws Exception {
+        long start = System.nanoTime();
+        Map<String, Properties> clientTLSProperties = new ConcurrentHashMap<>();
+
+        List<CompletableFuture<Void>> orgs = new ArrayList<>();
+        for (SampleOrg sampleOrg : sampleOrgs) {
+            orgs.add(enrollOrg(sampleOrg, userNames, affiliation, clientTLSProperties));
+        }
+
+        try {
+            CompletableFuture.allOf(orgs.toArray(new CompletableFuture[0])).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            timings.record("total", System.nanoTime() - start);
+            log.info("enrollment timings\n{}", timings.report());
+        }
+        return clientTLSProperties;
+    }
+
+    private CompletableFuture<Void> enrollOrg(SampleOrg sampleOrg, Collection<String> userNames, String affiliation,
+                                              Map<String, Properties> clientTLSProperties) {
+        final HFCAClient ca = sampleOrg.getCAClient();
+        final String mspid = sampleOrg.getMSPID();
+        try {
+            ca.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
+        } catch (Exception e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        CompletableFuture<Void> tls = CompletableFuture.completedFuture(null);
+        if (testConfig.isRunningFabricTLS()) {
+            //This shows how to get a client TLS certificate from Fabric CA
+            // we will use one client TLS certificate for orderer peers etc.
+            tls = step("tls enroll", sampleOrg, () -> {
+                final EnrollmentRequest enrollmentRequestTLS = new EnrollmentRequest();
+                enrollmentRequestTLS.addHost("localhost");
+                enrollmentRequestTLS.setProfile("tls");
+                final Enrollment enroll = ca.enroll(ADMIN_NAME, ADMIN_SECRET, enrollmentRequestTLS);
+                final String tlsCertPEM = enroll.getCert();
+                final String tlsKeyPEM = getPEMStringFromPrivateKey(enroll.getKey());
+
+                final Properties tlsProperties = new Properties();
+                tlsProperties.put("clientKeyBytes", tlsKeyPEM.getBytes(UTF_8));
+                tlsProperties.put("clientCertBytes", tlsCertPEM.getBytes(UTF_8));
+                clientTLSProperties.put(sampleOrg.getName(), tlsProperties);
+                //Save in samplestore for follow on tests.
+                sampleStore.storeClientPEMTLCertificate(sampleOrg, tlsCertPEM);
+                sampleStore.storeClientPEMTLSKey(sampleOrg, tlsKeyPEM);
+                return null;
+            });
+        }
+
+        CompletableFuture<HFCAInfo> info = step("ca info", sampleOrg, ca::info); //just check if we connect at all.
+
+        CompletableFuture<SampleUser> admin = step("admin enroll", sampleOrg, () -> {
+            SampleUser user = sampleStore.getMember(ADMIN_NAME, sampleOrg.getName());
+            if (!user.isEnrolled()) {  //Preregistered admin only needs to be enrolled with Fabric caClient.
+                user.edit().enrollment(ca.enroll(user.getName(), ADMIN_SECRET)).mspId(mspid).commit();
+            }
+            return user;
+        });
+
+        CompletableFuture<SampleUser> peerAdmin = step("peer admin load", sampleOrg, () -> {
+            final String sampleOrgName = sampleOrg.getName();
+            final String sampleOrgDomainName = sampleOrg.getDomainName();
+            return sampleStore.getMember(sampleOrgName + "Admin", sampleOrgName, mspid,
+                    Util.findFileSk(Paths.get(testConfig.getTestChannelPath(networkPath), "crypto-config/peerOrganizations/",
+                            sampleOrgDomainName, format("/users/Admin@%s/msp/keystore", sampleOrgDomainName)).toFile()),
+                    Paths.get(testConfig.getTestChannelPath(networkPath), "crypto-config/peerOrganizations/", sampleOrgDomainName,
+                            format("/users/Admin@%s/msp/signcerts/Admin@%s-cert.pem", sampleOrgDomainName, sampleOrgDomainName)).toFile());
+        });
+
+        List<CompletableFuture<SampleUser>> users = new ArrayList<>();
+        for (String userName : userNames) {
+            users.add(admin.thenCompose(registrar -> enrollUser(sampleOrg, registrar, userName, affiliation)));
+        }
+
+        List<CompletableFuture<?>> all = new ArrayList<>(users);
+        all.add(tls);
+        all.add(info);
+        all.add(peerAdmin);
+        return CompletableFuture.allOf(all.toArray(new CompletableFuture[0])).thenRun(() -> {
+            sampleOrg.setPeerAdmin(peerAdmin.join()); //A special user that can create channels, join peers and install chaincode
+            for (CompletableFuture<SampleUser> user : users) {
+                sampleOrg.addUser(user.join());
+            }
+            sampleOrg.setAdmin(admin.join()); // The admin of this org --
+            log.debug("enrolled org {} against CA {}", sampleOrg.getName(), info.join().getCAName());
+        });
+    }
+
+    /**
+     * Register the user unless it is registered already, then enroll it unless it is enrolled already.
+     *
+     * @param sampleOrg   the org of the user, its CA client set up by {@link #enroll}
+     * @param registrar   the enrolled user registering the new one
+     * @param userName    name of the user
+     * @param affiliation affiliation the user is registered with
+     * @return the registered and enrolled user
+     */
+    public CompletableFuture<SampleUser> enrollUser(SampleOrg sampleOrg, SampleUser registrar, String userName,
+                                                    String affiliation) {
+        final HFCAClient ca = sampleOrg.getCAClient();
+        SampleUser user = sampleStore.getMember(userName, sampleOrg.getName());
+
+        CompletableFuture<SampleUser> registered = CompletableFuture.completedFuture(user);
+        if (!user.isRegistered()) {  // users need to be registered AND enrolled
+            registered = step(REGISTER_STEP, sampleOrg, () -> {
+                RegistrationRequest rr = new RegistrationRequest(user.getName(), affiliation);
+                // saved on its own, the secret can't be recovered if enrolling fails
+                return user.edit().enrollmentSecret(ca.register(rr, registrar)).commit();
+            });
+        }
+        return registered.thenCompose(u -> {
+            if (u.isEnrolled()) {
+                return CompletableFuture.completedFuture(u);
+            }
+            return step(ENROLL_STEP, sampleOrg, () ->
+                    u.edit().enrollment(ca.enroll(u.getName(), u.getEnrollmentSecret())).mspId(sampleOrg.getMSPID()).commit());
+        });
+    }
+
+    /**
+     * Create the CA client of every org.
+     */
+    public static void createCAClients(Collection<SampleOrg> sampleOrgs) throws Exception {
+        for (SampleOrg sampleOrg : sampleOrgs) {
+            String caName = sampleOrg.getCAName(); //Try one of each name and no name.
+            if (caName != null && !caName.isEmpty()) {
+                sampleOrg.setCAClient(HFCAClient.createNewInstance(caName, sampleOrg.getCALocation(), sampleOrg.getCAProperties()));
+            } else {
+                sampleOrg.setCAClient(HFCAClient.createNewInstance(sampleOrg.getCALocation(), sampleOrg.getCAProperties()));
+            }
+        }
+    }
+
+    /**
+     * Run a step on the executor and record its time.
+     */
+    private <T> CompletableFuture<T> step(String name, SampleOrg sampleOrg, Callable<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            final long start = System.nanoTime();
+            String outcome = "failure";
+            try {
+                T result = timings.time(name, call);
+                outcome = "success";
+                return result;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            } finally {
+                if (Metrics.isEnabled()) {
+                    Metrics.record("fabric.ca", System.nanoTime() - start, "org", sampleOrg.getName(), "call", name, "outcome", outcome);
+                }
+            }
+        }, executor);
+    }
+
+    public StepTimings getTimings() {
+        return timings;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static String getPEMStringFromPrivateKey(PrivateKey privateKey) throws Exception {
+        StringWriter pemStrWriter = new StringWriter();
+        PEMWriter pemWriter = new PEMWriter(pemStrWriter);
+
+        pemWriter.writeObject(privateKey);
+
+        pemWriter.close();
+
+        return pemStrWriter.toString();
+    }
+}
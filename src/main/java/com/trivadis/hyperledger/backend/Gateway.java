@@ -0,0 +1,377 @@
+package com.trivadis.hyperledger.backend;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hyperledger.fabric.sdk.*;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Long running client serving chaincode invokes and queries over a local HTTP API.
+ * <p>
+ * For every org it keeps one {@link HFClient} acting as {@link TestConfig#getGatewayUser()}, and for every
+ * channel the org is a member of, see {@link TestConfig#getGatewayChannels()}, an initialized
+ * {@link Channel} with its peer and orderer connections, a {@link QueryRouter}, a {@link QueryCache},
+ * a {@link CommitTracker} and a {@link TransactionSubmitter} per chaincode. A {@link ConflictScheduler} per channel
+ * and chaincode, shared by all orgs and copies of the channel, keeps concurrent invokes on the same keys from
+ * invalidating each other. With {@link TestConfig#isGatewayBlockEvents()} a {@link BlockEventProcessor} per channel
+ * follows every committed transaction from the last checkpoint on, logging invalid ones and counting them in the
+ * {@link Metrics}. They live as long as the gateway, so channel
+ * initialization and TLS handshakes are paid once and not per request. With a
+ * {@link TestConfig#getConnectionPoolSize()} above one, an org has that many clients and copies of each channel,
+ * each with its own connections, see {@link ConnectionManager}; invokes go to them in turn and queries by their
+ * arguments, so each copy caches its own share of the queries.
+ * <p>
+ * The API listens on the loopback interface only:
+ * <pre>
+ * POST /invoke?org=peerOrg1&amp;channel=foo&amp;chaincode=example_cc_java&amp;fcn=invoke&amp;arg=a&amp;arg=b&amp;arg=100
+ *   -&gt; {"txId": "...", "payload": "..."} once committed
+ * GET  /query?org=peerOrg1&amp;channel=foo&amp;chaincode=example_cc_java&amp;fcn=query&amp;arg=b[&amp;bypassCache=true]
+ *   -&gt; {"payload": "..."}
+ * </pre>
+ * Parameters may also be sent form encoded in the body. An optional {@code version} selects the chaincode
+ * version.
+ */
+public class Gateway implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(Gateway.class);
+
+    private static final String NETWORK_PATH = "network";
+    private static final String AFFILIATION = "org1.department1";
+    // only install and instantiate care about the language
+    private static final TransactionRequest.Type CHAINCODE_LANG = TransactionRequest.Type.JAVA;
+
+    private final TestConfig testConfig;
+    private final ResponseVerifier responseVerifier;
+    private final EndorsementPlanner planner;
+    private final Map<String, ConnectionManager.Pool<Connection>> connections = new TreeMap<>();
+    // by channel and chaincode, shared by the orgs and the pooled copies of the channel
+    private final Map<String, ConflictScheduler> schedulers = new ConcurrentHashMap<>();
+    private final Map<String, BlockEventProcessor> eventProcessors = new TreeMap<>();
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+
+    /**
+     * Open the channels of every org.
+     *
+     * @param sampleOrgs  the orgs, with the gateway user enrolled
+     * @param sampleStore to restore channels from and save them to
+     */
+    public Gateway(TestConfig testConfig, Collection<SampleOrg> sampleOrgs, SampleStore sampleStore) throws Exception {
+        this.testConfig = testConfig;
+        this.responseVerifier = new ResponseVerifier(CryptoSuite.Factory.getCryptoSuite());
+        this.planner = EndorsementPlanner.fromYamlFile(new File(NETWORK_PATH + "/chaincodeendorsementpolicy.yaml"), sampleOrgs);
+
+        Map<String, SampleOrg> orgsByName = new HashMap<>();
+        for (SampleOrg sampleOrg : sampleOrgs) {
+            orgsByName.put(sampleOrg.getName(), sampleOrg);
+        }
+
+        ConnectionManager connectionManager = new ConnectionManager(testConfig, NETWORK_PATH);
+        ChannelFactory channelFactory = new ChannelFactory(connectionManager);
+        for (SampleOrg sampleOrg : sampleOrgs) {
+            User user = sampleOrg.getUser(testConfig.getGatewayUser());
+            if (user == null) {
+                log.warn(String.format("Org %s has no user %s, not serving it", sampleOrg.getName(), testConfig.getGatewayUser()));
+                continue;
+            }
+            // a client has only one channel of a name
+            List<HFClient> clients = new ArrayList<>();
+            for (int i = 0; i < connectionManager.getPoolSize(); i++) {
+                HFClient client = HFClient.createNewInstance();
+                client.setCryptoSuite(responseVerifier);
+                client.setUserContext(user);
+                clients.add(client);
+            }
+
+            for (Map.Entry<String, List<String>> channel : testConfig.getGatewayChannels().entrySet()) {
+                if (!channel.getValue().contains(sampleOrg.getName())) {
+                    continue;
+                }
+                List<SampleOrg> members = new ArrayList<>();
+                for (String member : channel.getValue()) {
+                    SampleOrg memberOrg = orgsByName.get(member);
+                    if (memberOrg == null) {
+                        throw new IllegalArgumentException(String.format("Unknown org %s of channel %s", member, channel.getKey()));
+                    }
+                    members.add(memberOrg);
+                }
+                List<Connection> pooled = new ArrayList<>();
+                for (HFClient client : clients) {
+                    pooled.add(new Connection(client, channelFactory.openChannel(client, channel.getKey(), members, sampleStore)));
+                }
+                connections.put(key(sampleOrg.getName(), channel.getKey()), new ConnectionManager.Pool<>(pooled));
+
+                if (testConfig.isGatewayBlockEvents() && !eventProcessors.containsKey(channel.getKey())) {
+                    HFClient eventClient = HFClient.createNewInstance();
+                    eventClient.setCryptoSuite(responseVerifier);
+                    eventClient.setUserContext(user);
+                    final String channelName = channel.getKey();
+                    eventProcessors.put(channelName, BlockEventProcessor.open(testConfig, channelFactory, eventClient, channelName,
+                            members, sampleStore, "gateway." + channelName, (blockEvent, transactionEvent) ->
+                                    committed(channelName, blockEvent, transactionEvent)));
+                }
+            }
+        }
+    }
+
+    /**
+     * The long lived state of one org in one channel.
+     */
+    private final class Connection {
+        final HFClient client;
+        final Channel channel;
+        final QueryRouter queryRouter;
+        final QueryCache queryCache;
+        final CommitTracker commitTracker;
+        final Map<String, TransactionSubmitter> submitters = new ConcurrentHashMap<>();
+
+        Connection(HFClient client, Channel channel) throws Exception {
+            this.client = client;
+            this.channel = channel;
+            this.queryRouter = new QueryRouter(testConfig, channel);
+            this.queryCache = testConfig.getQueryCacheMaxEntries() > 0 ? new QueryCache(testConfig, queryRouter, channel) : null;
+            this.commitTracker = new CommitTracker(testConfig, channel);
+        }
+
+        TransactionSubmitter submitter(ChaincodeID chaincodeID) {
+            return submitters.computeIfAbsent(chaincodeID.toString(),
+                    id -> new TransactionSubmitter(testConfig, client, channel, chaincodeID, CHAINCODE_LANG, planner, commitTracker));
+        }
+
+        CompletableFuture<byte[]> query(QueryByChaincodeRequest request, boolean bypassCache) {
+            if (queryCache != null) {
+                return queryCache.query(request, bypassCache);
+            }
+            return queryRouter.query(request).thenApply(response ->
+                    response.getProposalResponse().getResponse().getPayload().toByteArray());
+        }
+
+        void close() {
+            for (TransactionSubmitter submitter : submitters.values()) {
+                submitter.close();
+            }
+            commitTracker.close();
+            if (queryCache != null) {
+                queryCache.close();
+            }
+            queryRouter.close();
+            channel.shutdown(true);
+        }
+    }
+
+    /**
+     * Follow a transaction committed to the channel, by any client.
+     */
+    private static void committed(String channelName, BlockEvent blockEvent, BlockEvent.TransactionEvent transactionEvent) {
+        if (!transactionEvent.isValid()) {
+            log.warn(String.format("Transaction %s in block %d of channel %s is invalid, validation code %d",
+                    transactionEvent.getTransactionID(), blockEvent.getBlockNumber(), channelName, transactionEvent.getValidationCode()));
+        }
+        if (Metrics.isEnabled()) {
+            Metrics.count("fabric.block.transactions", "channel", channelName, "outcome", transactionEvent.isValid() ? "valid" : "invalid");
+        }
+    }
+
+    /**
+     * Start serving the API on the loopback interface.
+     */
+    public void start(int port) throws IOException {
+        serverExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2, r -> new Thread(r, "Gateway-http"));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/invoke", this::invoke);
+        server.createContext("/query", this::query);
+        server.setExecutor(serverExecutor);
+        server.start();
+        log.info(String.format("Gateway serving %s on port %d", connections.keySet(), port));
+    }
+
+    private void invoke(HttpExchange exchange) {
+        try {
+            Map<String, List<String>> parameters = parameters(exchange);
+            Connection connection = pool(parameters).next();
+            List<String> args = parameters.getOrDefault("arg", Collections.emptyList());
+            ChaincodeInvocation invocation = new ChaincodeInvocation(required(parameters, "fcn"), args.toArray(new String[0]));
+
+            // answered once committed, the http thread goes on with the next request
+            ChaincodeID chaincodeID = chaincodeID(parameters);
+            ConflictScheduler scheduler = schedulers.computeIfAbsent(key(required(parameters, "channel"), chaincodeID.toString()),
+                    k -> new ConflictScheduler(testConfig));
+            scheduler.submit(connection.submitter(chaincodeID), invocation).whenComplete((result, e) -> {
+                if (e != null) {
+                    respond(exchange, 500, error(e));
+                } else {
+                    respond(exchange, 200, Json.createObjectBuilder()
+                            .add("txId", result.getTransactionEvent().getTransactionID())
+                            .add("payload", result.getPayloadAsString() == null ? "" : result.getPayloadAsString())
+                            .build());
+                }
+            });
+        } catch (Exception e) {
+            respond(exchange, e instanceof IllegalArgumentException ? 400 : 500, error(e));
+        }
+    }
+
+    private void query(HttpExchange exchange) {
+        try {
+            Map<String, List<String>> parameters = parameters(exchange);
+            List<String> args = parameters.getOrDefault("arg", Collections.emptyList());
+            Connection connection = pool(parameters).forKey(Arrays.asList(required(parameters, "chaincode"), required(parameters, "fcn"), args));
+
+            QueryByChaincodeRequest request = connection.client.newQueryProposalRequest();
+            request.setChaincodeID(chaincodeID(parameters));
+            request.setFcn(required(parameters, "fcn"));
+            request.setArgs(new ArrayList<>(args));
+            request.setProposalWaitTime(testConfig.getProposalWaitTime());
+            boolean bypassCache = Boolean.parseBoolean(optional(parameters, "bypassCache"));
+
+            connection.query(request, bypassCache).whenComplete((payload, e) -> {
+                if (e != null) {
+                    respond(exchange, 500, error(e));
+                } else {
+                    respond(exchange, 200, Json.createObjectBuilder().add("payload", new String(payload, UTF_8)).build());
+                }
+            });
+        } catch (Exception e) {
+            respond(exchange, e instanceof IllegalArgumentException ? 400 : 500, error(e));
+        }
+    }
+
+    private ConnectionManager.Pool<Connection> pool(Map<String, List<String>> parameters) {
+        String org = required(parameters, "org");
+        String channel = required(parameters, "channel");
+        ConnectionManager.Pool<Connection> pool = connections.get(key(org, channel));
+        if (pool == null) {
+            throw new IllegalArgumentException(String.format("Not serving channel %s for org %s", channel, org));
+        }
+        return pool;
+    }
+
+    private static ChaincodeID chaincodeID(Map<String, List<String>> parameters) {
+        ChaincodeID.Builder builder = ChaincodeID.newBuilder().setName(required(parameters, "chaincode"));
+        String version = optional(parameters, "version");
+        if (version != null) {
+            builder.setVersion(version);
+        }
+        return builder.build();
+    }
+
+    private static Map<String, List<String>> parameters(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> parameters = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), parameters);
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            try (InputStream in = exchange.getRequestBody()) {
+                for (int n; (n = in.read(buffer)) != -1; ) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            parse(new String(body.toByteArray(), UTF_8), parameters);
+        }
+        return parameters;
+    }
+
+    private static void parse(String encoded, Map<String, List<String>> parameters) throws UnsupportedEncodingException {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            parameters.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+        }
+    }
+
+    private static String required(Map<String, List<String>> parameters, String name) {
+        String value = optional(parameters, name);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Missing parameter %s", name));
+        }
+        return value;
+    }
+
+    private static String optional(Map<String, List<String>> parameters, String name) {
+        List<String> values = parameters.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private static JsonObject error(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return Json.createObjectBuilder().add("error", String.valueOf(cause.getMessage())).build();
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject body) {
+        try {
+            byte[] bytes = body.toString().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            log.warn(String.format("Could not answer %s: %s", exchange.getRequestURI(), e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String key(String org, String channel) {
+        return org + '/' + channel;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(1);
+            serverExecutor.shutdown();
+        }
+        for (ConflictScheduler scheduler : schedulers.values()) {
+            scheduler.close();
+        }
+        for (BlockEventProcessor eventProcessor : eventProcessors.values()) {
+            eventProcessor.close();
+        }
+        for (ConnectionManager.Pool<Connection> pool : connections.values()) {
+            for (Connection connection : pool.getMembers()) {
+                connection.close();
+            }
+        }
+        responseVerifier.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestConfig testConfig = TestConfig.getConfig();
+        Collection<SampleOrg> sampleOrgs = testConfig.getIntegrationTestsSampleOrgs();
+        EnrollmentPipeline.createCAClients(sampleOrgs);
+        Metrics.start(testConfig);
+
+        // kept between runs, users enrolled and channels opened once start warm
+        SampleStore sampleStore = new SampleStore(new File(System.getProperty("java.io.tmpdir") + "/HFCSampletest.properties"));
+        try (EnrollmentPipeline pipeline = new EnrollmentPipeline(testConfig, sampleStore, NETWORK_PATH,
+                testConfig.getEnrollmentParallelism())) {
+            pipeline.enroll(sampleOrgs, Collections.singleton(testConfig.getGatewayUser()), AFFILIATION);
+        }
+
+        Gateway gateway = new Gateway(testConfig, sampleOrgs, sampleStore);
+        gateway.start(testConfig.getGatewayPort());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            gateway.close();
+            sampleStore.close();
+            Metrics.stop();
+        }, "Gateway-shutdown"));
+    }
+}
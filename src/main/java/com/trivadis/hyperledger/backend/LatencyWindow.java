@@ -0,0 +1,50 @@
+package com.trivadis.hyperledger.backend;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The most recent latencies of some call, with a percentile recomputed every few calls.
+ */
+final class LatencyWindow {
+    private static final int SIZE = 512;
+    private static final int MIN_SAMPLES = 32;
+    private static final int RECOMPUTE_EVERY = 64;
+
+    private final long[] samples = new long[SIZE];
+    private final AtomicLong recorded = new AtomicLong();
+    private volatile double cachedPercentile = -1;
+    private volatile long cachedValue;
+    private volatile long cachedAt = -RECOMPUTE_EVERY;
+
+    void record(long nanos) {
+        long n = recorded.getAndIncrement();
+        synchronized (samples) {
+            samples[(int) (n % SIZE)] = nanos;
+        }
+    }
+
+    /**
+     * @return the percentile of the recent latencies, 0 if there are too few yet.
+     */
+    long percentile(double percentile) {
+        long n = recorded.get();
+        if (n < MIN_SAMPLES) {
+            return 0;
+        }
+        if (percentile == cachedPercentile && n - cachedAt < RECOMPUTE_EVERY) {
+            return cachedValue;
+        }
+        long[] sorted;
+        synchronized (samples) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(n, SIZE));
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        long value = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        cachedValue = value;
+        cachedPercentile = percentile;
+        cachedAt = n;
+        return value;
+    }
+}
@@ -0,0 +1,333 @@
+package com.trivadis.hyperledger.backend;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.hyperledger.fabric.sdk.*;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Drives invokes and queries of the sample chaincode and measures throughput and latency.
+ * <p>
+ * Invokes move 1 between two random accounts of {@link TestConfig#getLoadKeySpace()} accounts, queries read a
+ * random account, {@link TestConfig#getLoadQueryRatio()} of the operations are queries. The load is either open,
+ * {@link TestConfig#getLoadRate()} operations per second whether or not earlier ones finished, or closed,
+ * {@link TestConfig#getLoadWorkers()} workers each starting an operation once their previous one finished.
+ * Invokes go through a {@link ConflictScheduler}, or with {@link TestConfig#isLoadBatched()} through a
+ * {@link TransactionBatcher}, so the two can be compared.
+ * <p>
+ * Latencies are kept in HdrHistograms: per operation, measured from when it was due to start so a run falling
+ * behind its rate shows in the latencies, and per step of the {@link TransactionSubmitter}, with endorsement,
+ * ordering and validation timed separately thanks to a {@link CommitTracker}. The report is written as JSON and
+ * CSV to {@link TestConfig#getLoadOutput()}{@code .json} and {@code .csv}.
+ * <p>
+ * Runs against a network with the chaincode instantiated, e.g. by {@link Main}.
+ */
+public class LoadGenerator implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final String NETWORK_PATH = "network";
+    private static final String AFFILIATION = "org1.department1";
+    // only install and instantiate care about the language
+    private static final TransactionRequest.Type CHAINCODE_LANG = TransactionRequest.Type.JAVA;
+
+    public static final String INVOKE = "invoke";
+    public static final String QUERY = "query";
+    private static final int INITIAL_BALANCE = 1_000_000;
+
+    private final TestConfig testConfig;
+    private final HFClient client;
+    private final ChaincodeID chaincodeID;
+    private final CommitTracker commitTracker;
+    private final TransactionSubmitter submitter;
+    private final ConflictScheduler scheduler;
+    private final TransactionBatcher batcher;
+    private final QueryRouter queryRouter;
+
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final LongAdder invokes = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    public LoadGenerator(TestConfig testConfig, HFClient client, Channel channel, ChaincodeID chaincodeID,
+                         EndorsementPlanner planner) throws Exception {
+        this.testConfig = testConfig;
+        this.client = client;
+        this.chaincodeID = chaincodeID;
+        this.commitTracker = new CommitTracker(testConfig, channel);
+        this.submitter = new TransactionSubmitter(testConfig, client, channel, chaincodeID, CHAINCODE_LANG, planner, commitTracker);
+        this.submitter.getTimings().addListener(this::record);
+        this.scheduler = new ConflictScheduler(testConfig, submitter);
+        this.batcher = testConfig.isLoadBatched() ? new TransactionBatcher(testConfig, submitter) : null;
+        this.queryRouter = new QueryRouter(testConfig, channel);
+    }
+
+    private void record(String step, long nanos) {
+        histograms.computeIfAbsent(step, s -> new ConcurrentHistogram(3)).recordValue(Math.max(0, nanos));
+    }
+
+    private static String account(int n) {
+        return "acct" + n;
+    }
+
+    /**
+     * Create the accounts, each one with the same balance.
+     */
+    public void seed(int keySpace) throws InterruptedException {
+        final LongAdder failed = new LongAdder();
+        for (int n = 0; n < keySpace; n++) {
+            submitter.submit(new ChaincodeInvocation("create", account(n), Integer.toString(INITIAL_BALANCE)), (result, e) -> {
+                if (e != null) {
+                    failed.increment();
+                }
+            });
+        }
+        submitter.drain();
+        log.info(String.format("Created %d accounts, %d failed", keySpace - failed.sum(), failed.sum()));
+    }
+
+    /**
+     * Start an invoke or a query.
+     *
+     * @param due when the operation was due to start, its latency is measured from then
+     */
+    private CompletableFuture<?> operation(long due, int keySpace, double queryRatio) throws InterruptedException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        outstanding.incrementAndGet();
+        CompletableFuture<?> done;
+        final String op;
+        if (random.nextDouble() < queryRatio) {
+            op = QUERY;
+            QueryByChaincodeRequest request = client.newQueryProposalRequest();
+            request.setChaincodeID(chaincodeID);
+            request.setFcn(QUERY);
+            request.setArgs(new String[]{account(random.nextInt(keySpace))});
+            request.setProposalWaitTime(testConfig.getProposalWaitTime());
+            done = queryRouter.query(request);
+            queries.increment();
+        } else {
+            op = INVOKE;
+            int from = random.nextInt(keySpace);
+            int to = keySpace == 1 ? from : (from + 1 + random.nextInt(keySpace - 1)) % keySpace;
+            try {
+                ChaincodeInvocation invocation = new ChaincodeInvocation(INVOKE, account(from), account(to), "1");
+                done = batcher != null ? batcher.submit(invocation) : scheduler.submit(invocation);
+            } catch (InterruptedException | RuntimeException e) {
+                outstanding.decrementAndGet();
+                throw e;
+            }
+            invokes.increment();
+        }
+        return done.whenComplete((r, e) -> {
+            if (e != null) {
+                errors.increment();
+            } else {
+                record(op, System.nanoTime() - due);
+            }
+            outstanding.decrementAndGet();
+        });
+    }
+
+    /**
+     * Start operations at the rate, whether or not the ones before finished, then wait for all of them.
+     * An operation waiting for a free in flight slot of the submitter starts late, and its latency counts
+     * from when it was due.
+     */
+    public void runOpenLoop(double rate, int keySpace, double queryRatio, long durationMillis) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long duration = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        final double interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        for (long i = 0; ; i++) {
+            final long due = start + (long) (i * interval);
+            if (due - start >= duration) {
+                break;
+            }
+            for (long wait; (wait = due - System.nanoTime()) > 0; ) {
+                LockSupport.parkNanos(wait);
+            }
+            operation(due, keySpace, queryRatio);
+        }
+        awaitOutstanding();
+        log.info(String.format("Open loop at %.1f/s done in %d ms", rate, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Let each worker start an operation as soon as its previous one finished.
+     */
+    public void runClosedLoop(int workers, int keySpace, double queryRatio, long durationMillis) throws InterruptedException {
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        List<Thread> threads = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.nanoTime() - end < 0) {
+                        try {
+                            operation(System.nanoTime(), keySpace, queryRatio).join();
+                        } catch (CompletionException e) {
+                            // counted as error
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "LoadGenerator-worker-" + w);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void awaitOutstanding() throws InterruptedException {
+        while (outstanding.get() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Clear the counters and histograms, e.g. after seeding or a warm up.
+     */
+    public void reset() {
+        histograms.clear();
+        invokes.reset();
+        queries.reset();
+        errors.reset();
+    }
+
+    public void writeJson(File file, String mode, long durationMillis) throws IOException {
+        JsonObjectBuilder latencies = Json.createObjectBuilder();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            latencies.add(entry.getKey(), Json.createObjectBuilder()
+                    .add("count", histogram.getTotalCount())
+                    .add("meanMs", histogram.getMean() / 1e6)
+                    .add("p50Ms", millis(histogram, 50))
+                    .add("p90Ms", millis(histogram, 90))
+                    .add("p99Ms", millis(histogram, 99))
+                    .add("p999Ms", millis(histogram, 99.9))
+                    .add("maxMs", histogram.getMaxValue() / 1e6));
+        }
+        long operations = invokes.sum() + queries.sum();
+        try (JsonWriter writer = Json.createWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            writer.writeObject(Json.createObjectBuilder()
+                    .add("mode", mode)
+                    .add("batched", batcher != null)
+                    .add("meanBatchSize", batcher != null ? batcher.getMeanBatchSize() : 1.0)
+                    .add("durationMs", durationMillis)
+                    .add("invokes", invokes.sum())
+                    .add("queries", queries.sum())
+                    .add("errors", errors.sum())
+                    .add("operationsPerSecond", operations * 1000.0 / Math.max(1, durationMillis))
+                    .add("latencies", latencies)
+                    .build());
+        }
+    }
+
+    public void writeCsv(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            writer.println("step,count,mean_ms,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                Histogram histogram = entry.getValue();
+                writer.println(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f", entry.getKey(),
+                        histogram.getTotalCount(), histogram.getMean() / 1e6, millis(histogram, 50), millis(histogram, 90),
+                        millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / 1e6));
+            }
+        }
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoadGenerator{invokes=%d, queries=%d, errors=%d}", invokes.sum(), queries.sum(), errors.sum());
+    }
+
+    @Override
+    public void close() {
+        if (batcher != null) {
+            batcher.close();
+        }
+        scheduler.close();
+        submitter.close();
+        commitTracker.close();
+        queryRouter.close();
+        log.info(toString());
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestConfig testConfig = TestConfig.getConfig();
+        String channelName = testConfig.getLoadChannel();
+        List<String> memberNames = testConfig.getGatewayChannels().get(channelName);
+        if (memberNames == null) {
+            throw new IllegalArgumentException(String.format("Channel %s isn't configured for the gateway", channelName));
+        }
+        List<SampleOrg> members = new ArrayList<>();
+        for (String memberName : memberNames) {
+            members.add(testConfig.getIntegrationTestsSampleOrg(memberName));
+        }
+        Collection<SampleOrg> sampleOrgs = testConfig.getIntegrationTestsSampleOrgs();
+        EnrollmentPipeline.createCAClients(sampleOrgs);
+        Metrics.start(testConfig);
+
+        SampleStore sampleStore = new SampleStore(new File(System.getProperty("java.io.tmpdir") + "/HFCSampletest.properties"));
+        ResponseVerifier responseVerifier = new ResponseVerifier(CryptoSuite.Factory.getCryptoSuite());
+        try {
+            try (EnrollmentPipeline pipeline = new EnrollmentPipeline(testConfig, sampleStore, NETWORK_PATH,
+                    testConfig.getEnrollmentParallelism())) {
+                pipeline.enroll(sampleOrgs, Collections.singleton(testConfig.getGatewayUser()), AFFILIATION);
+            }
+
+            HFClient client = HFClient.createNewInstance();
+            client.setCryptoSuite(responseVerifier);
+            client.setUserContext(members.get(0).getUser(testConfig.getGatewayUser()));
+            Channel channel = new ChannelFactory(testConfig, NETWORK_PATH).openChannel(client, channelName, members, sampleStore);
+            ChaincodeID chaincodeID = ChaincodeID.newBuilder().setName(testConfig.getLoadChaincode()).build();
+            EndorsementPlanner planner = EndorsementPlanner.fromYamlFile(new File(NETWORK_PATH + "/chaincodeendorsementpolicy.yaml"), sampleOrgs);
+
+            final int keySpace = testConfig.getLoadKeySpace();
+            final double queryRatio = testConfig.getLoadQueryRatio();
+            final long duration = testConfig.getLoadDuration();
+            final String mode = testConfig.getLoadMode();
+            try (LoadGenerator generator = new LoadGenerator(testConfig, client, channel, chaincodeID, planner)) {
+                if (testConfig.isLoadSeed()) {
+                    generator.seed(keySpace);
+                    generator.reset();
+                }
+                if ("open".equals(mode)) {
+                    generator.runOpenLoop(testConfig.getLoadRate(), keySpace, queryRatio, duration);
+                } else {
+                    generator.runClosedLoop(testConfig.getLoadWorkers(), keySpace, queryRatio, duration);
+                }
+                String output = testConfig.getLoadOutput();
+                new File(output).getAbsoluteFile().getParentFile().mkdirs();
+                generator.writeJson(new File(output + ".json"), mode, duration);
+                generator.writeCsv(new File(output + ".csv"));
+                log.info(String.format("%s, report written to %s.json and %s.csv", generator, output, output));
+            } finally {
+                channel.shutdown(true);
+            }
+        } finally {
+            responseVerifier.close();
+            sampleStore.close();
+            Metrics.stop();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.trivadis.hyperledger.backend;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded, thread safe cache evicting the least recently used entries and entries that have not been
+ * used for a while.
+ * <p>
+ * Keys are spread over independently locked segments, each one a small access ordered map, so threads
+ * working on different keys rarely wait for each other. The size limit and the LRU order are kept per
+ * segment.
+ */
+public class LruCache<K, V> {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize       maximum number of entries
+     * @param maxIdleMillis entries not used for this long are dropped, 0 or less keeps them until evicted
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(int maxSize, long maxIdleMillis) {
+        long maxIdleNanos = maxIdleMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(maxIdleMillis) : Long.MAX_VALUE;
+        int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(segmentSize, maxIdleNanos, evictions);
+        }
+    }
+
+    /**
+     * @return the cached value or null if there is none.
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            V value = segment.get(key, System.nanoTime());
+            (value == null ? misses : hits).increment();
+            return value;
+        }
+    }
+
+    /**
+     * Return the cached value, loading and caching it first if there is none. The loader runs while other
+     * threads using keys of the same segment wait, so it should be quick.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            long now = System.nanoTime();
+            V value = segment.get(key, now);
+            if (value != null) {
+                hits.increment();
+                return value;
+            }
+            misses.increment();
+            value = loader.apply(key);
+            if (value != null) {
+                segment.put(key, value, now);
+            }
+            return value;
+        }
+    }
+
+    public void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, value, System.nanoTime());
+        }
+    }
+
+    /**
+     * @return true if a value is cached. Doesn't count as use of the entry.
+     */
+    public boolean containsKey(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.map.get(key);
+            return entry != null && !segment.expired(entry, System.nanoTime());
+        }
+    }
+
+    public V remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.map.remove(key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.map.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LruCache{size=%d, hits=%d, misses=%d, evictions=%d}",
+                size(), getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        long lastUsed;
+
+        Entry(V value, long lastUsed) {
+            this.value = value;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final class Segment<K, V> {
+        final int maxSize;
+        final long maxIdleNanos;
+        final LongAdder evictions;
+        final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+        Segment(int maxSize, long maxIdleNanos, LongAdder evictions) {
+            this.maxSize = maxSize;
+            this.maxIdleNanos = maxIdleNanos;
+            this.evictions = evictions;
+        }
+
+        V get(K key, long now) {
+            Entry<V> entry = map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (expired(entry, now)) {
+                map.remove(key);
+                evictions.increment();
+                return null;
+            }
+            entry.lastUsed = now;
+            return entry.value;
+        }
+
+        void put(K key, V value, long now) {
+            map.put(key, new Entry<>(value, now));
+
+            // least recently used first, so stop at the first entry that is still fresh and small enough
+            Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<K, Entry<V>> eldest = it.next();
+                if (map.size() <= maxSize && !expired(eldest.getValue(), now)) {
+                    break;
+                }
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        boolean expired(Entry<V> entry, long now) {
+            return now - entry.lastUsed > maxIdleNanos;
+        }
+    }
+}
@@ -1,21 +1,14 @@
 package com.trivadis.hyperledger.backend;
 
-import org.bouncycastle.openssl.PEMWriter;
 import org.hyperledger.fabric.sdk.*;
 import org.hyperledger.fabric.sdk.helper.Config;
 import org.hyperledger.fabric.sdk.security.CryptoSuite;
-import org.hyperledger.fabric_ca.sdk.EnrollmentRequest;
-import org.hyperledger.fabric_ca.sdk.HFCAClient;
-import org.hyperledger.fabric_ca.sdk.HFCAInfo;
-import org.hyperledger.fabric_ca.sdk.RegistrationRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.StringWriter;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.hyperledger.fabric.sdk.Channel.NOfEvents.createNofEvents;
@@ -27,7 +20,6 @@ public class Main {
   private static final Logger log = LoggerFactory.getLogger(Main.class);
 
   private static final TestConfig testConfig = TestConfig.getConfig();
-  private static final String TEST_ADMIN_NAME = "admin";
   private static final String FOO_CHANNEL_NAME = "foo";
   private static final String testUser1 = "user1";
   private static final String NETWORK_PATH="network";
@@ -43,6 +35,8 @@ public class Main {
   private SampleStore sampleStore = null;
 
   private Map<String, Properties> clientTLSProperties = new HashMap<>();
+  private EndorsementPlanner endorsementPlanner;
+  private ResponseVerifier responseVerifier;
 
 
   private void execute() throws Exception {
@@ -51,33 +45,37 @@ public class Main {
 
     testSampleOrgs = testConfig.getIntegrationTestsSampleOrgs();
     //Set up hfca for each sample org
-
-    for (SampleOrg sampleOrg : testSampleOrgs) {
-      String caName = sampleOrg.getCAName(); //Try one of each name and no name.
-      if (caName != null && !caName.isEmpty()) {
-        sampleOrg.setCAClient(HFCAClient.createNewInstance(caName, sampleOrg.getCALocation(), sampleOrg.getCAProperties()));
-      } else {
-        sampleOrg.setCAClient(HFCAClient.createNewInstance(sampleOrg.getCALocation(), sampleOrg.getCAProperties()));
-      }
-    }
+    EnrollmentPipeline.createCAClients(testSampleOrgs);
 
     if (sampleStoreFile.exists()) { //For testing start fresh
       sampleStoreFile.delete();
     }
+    Metrics.start(testConfig);
     sampleStore = new SampleStore(sampleStoreFile);
-    enrollUsersSetup(sampleStore);
-
-    HFClient client = HFClient.createNewInstance();
-
-    client.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
-
-    SampleOrg sampleOrg = testConfig.getIntegrationTestsSampleOrg("peerOrg1");
-    Channel channel = constructChannel(FOO_CHANNEL_NAME, client, sampleOrg);
-    sampleStore.saveChannel(channel);
-    install(client, channel, sampleOrg);
-    instantiate(client, channel);
-    move(client,channel,sampleOrg);
-    query(client,channel);
+    endorsementPlanner = EndorsementPlanner.fromYamlFile(new File(NETWORK_PATH + "/chaincodeendorsementpolicy.yaml"), testSampleOrgs);
+    try {
+      enrollUsersSetup(sampleStore);
+
+      HFClient client = HFClient.createNewInstance();
+
+      // proposal response verifications are counted and timed, see ResponseVerifier
+      responseVerifier = new ResponseVerifier(CryptoSuite.Factory.getCryptoSuite());
+      client.setCryptoSuite(responseVerifier);
+
+      SampleOrg sampleOrg = testConfig.getIntegrationTestsSampleOrg("peerOrg1");
+      Channel channel = constructChannel(FOO_CHANNEL_NAME, client, sampleOrg);
+      sampleStore.saveChannel(channel);
+      install(client, channel, sampleOrg);
+      instantiate(client, channel);
+      move(client,channel,sampleOrg);
+      query(client,channel);
+    } finally {
+      if (responseVerifier != null) {
+        responseVerifier.close();
+      }
+      sampleStore.close();
+      Metrics.stop();
+    }
 
   }
 
@@ -97,86 +95,37 @@ public class Main {
     tm2.put("method", "QueryByChaincodeRequest".getBytes(UTF_8));
     queryByChaincodeRequest.setTransientMap(tm2);
 
-    Collection<ProposalResponse> queryProposals = channel.queryByChaincode(queryByChaincodeRequest, channel.getPeers());
-    for (ProposalResponse proposalResponse : queryProposals) {
-      if (!proposalResponse.isVerified() || proposalResponse.getStatus() != ProposalResponse.Status.SUCCESS) {
-        log.error("error quering {}", queryByChaincodeRequest);
-        throw  new RuntimeException("error querying");
-      } else {
-        String payload = proposalResponse.getProposalResponse().getResponse().getPayload().toStringUtf8();
-        log.info("query success {}",payload);
-
-      }
+    // one peer is enough to query, the router picks the fastest and asks another one if it is slow or fails
+    try (QueryRouter queryRouter = new QueryRouter(testConfig, channel)) {
+      ProposalResponse proposalResponse = queryRouter.query(queryByChaincodeRequest).get();
+      String payload = proposalResponse.getProposalResponse().getResponse().getPayload().toStringUtf8();
+      log.info("query success {}",payload);
     }
 
-
   }
 
   private void move(HFClient client, Channel channel, SampleOrg sampleOrg)  throws Exception {
 
     final ChaincodeID chaincodeID = ChaincodeID.newBuilder().setName(CHAIN_CODE_NAME)
         .setVersion(CHAIN_CODE_VERSION).build();
-    Collection<ProposalResponse> responses;
-    Collection<ProposalResponse> successful = new LinkedList<>();
-    Collection<ProposalResponse> failed = new LinkedList<>();
-
 
     client.setUserContext(sampleOrg.getUser(testUser1));
 
-    ///////////////
-    /// Send transaction proposal to all peers
-    TransactionProposalRequest transactionProposalRequest = client.newTransactionProposalRequest();
-    transactionProposalRequest.setChaincodeID(chaincodeID);
-    transactionProposalRequest.setChaincodeLanguage(CHAIN_CODE_LANG);
-    transactionProposalRequest.setFcn("invoke");
-    //transactionProposalRequest.setFcn("move");
-    transactionProposalRequest.setProposalWaitTime(testConfig.getProposalWaitTime());
-    transactionProposalRequest.setArgs("a", "b", "100");
-
     Map<String, byte[]> tm2 = new HashMap<>();
     tm2.put("HyperLedgerFabric", "TransactionProposalRequest:JavaSDK".getBytes(UTF_8)); //Just some extra junk in transient map
     tm2.put("method", "TransactionProposalRequest".getBytes(UTF_8)); // ditto
     tm2.put("result", ":)".getBytes(UTF_8));  // This should be returned in the payload see chaincode why.
 
-    transactionProposalRequest.setTransientMap(tm2);
-
-    Collection<ProposalResponse> transactionPropResp = channel.sendTransactionProposal(transactionProposalRequest, channel.getPeers());
-    for (ProposalResponse response : transactionPropResp) {
-      if (response.getStatus() == ProposalResponse.Status.SUCCESS) {
-        successful.add(response);
-      } else {
-        failed.add(response);
-      }
-    }
-
-    if (failed.size() > 0) {
-      ProposalResponse firstTransactionProposalResponse = failed.iterator().next();
-      //fail
-    }
-
-    // Check that all the proposals are consistent with each other. We should have only one set
-    // where all the proposals above are consistent. Note the when sending to Orderer this is done automatically.
-    //  Shown here as an example that applications can invoke and select.
-    // See org.hyperledger.fabric.sdk.proposal.consistency_validation config property.
-    Collection<Set<ProposalResponse>> proposalConsistencySets = SDKUtils.getProposalConsistencySets(transactionPropResp);
-    if (proposalConsistencySets.size() != 1) {
-      log.error("inconsistent proposal result {}",proposalConsistencySets);
-      throw new RuntimeException("inconsistent proposal result");
-    }
-
-    ProposalResponse resp = successful.iterator().next();
-    byte[] x = resp.getChaincodeActionResponsePayload(); // This is the data returned by the chaincode.
-    String resultAsString = null;
-    if (x != null) {
-      resultAsString = new String(x, UTF_8);
+    ///////////////
+    /// Endorse on the peers the endorsement policy needs and send to the orderer, the submitter checks that the endorsements are consistent
+    try (TransactionSubmitter submitter = new TransactionSubmitter(testConfig, client, channel, chaincodeID, CHAIN_CODE_LANG,
+        endorsementPlanner)) {
+      TransactionSubmitter.Result result = submitter.submit(new ChaincodeInvocation("invoke", "a", "b", "100")
+          .setTransientMap(tm2)).get();
+
+      log.info("result of invoking chaincode {}", result.getPayloadAsString());
+      log.info("result of sending peer responses to orderer {}", result.getTransactionEvent());
     }
-    log.info("result of invoking chaincode {}",resultAsString);
-
-    ////////////////////////////
-    // Send Transaction Transaction to orderer
-    BlockEvent.TransactionEvent transactionEvent = channel.sendTransaction(successful).get(testConfig.getTransactionWaitTime(), TimeUnit.SECONDS);
-
-    log.info("result of sending peer responses to orderer {}",transactionEvent);
 
   }
 
@@ -296,18 +245,9 @@ public class Main {
 
     Collection<Orderer> orderers = new LinkedList<>();
 
+    ChannelFactory channelFactory = new ChannelFactory(testConfig, NETWORK_PATH);
     for (String orderName : sampleOrg.getOrdererNames()) {
-
-      Properties ordererProperties = testConfig.getOrdererProperties(orderName,NETWORK_PATH);
-
-      //example of setting keepAlive to avoid timeouts on inactive http2 connections.
-      // Under 5 minutes would require changes to server side to accept faster ping rates.
-      ordererProperties.put("grpc.NettyChannelBuilderOption.keepAliveTime", new Object[]{5L, TimeUnit.MINUTES});
-      ordererProperties.put("grpc.NettyChannelBuilderOption.keepAliveTimeout", new Object[]{8L, TimeUnit.SECONDS});
-      ordererProperties.put("grpc.NettyChannelBuilderOption.keepAliveWithoutCalls", new Object[]{true});
-
-      orderers.add(client.newOrderer(orderName, sampleOrg.getOrdererLocation(orderName),
-          ordererProperties));
+      orderers.add(channelFactory.newOrderer(client, sampleOrg, orderName));
     }
 
     //Just pick the first orderer in the list to create the channel.
@@ -324,17 +264,7 @@ public class Main {
 
     boolean everyother = true; //test with both cases when doing peer eventing.
     for (String peerName : sampleOrg.getPeerNames()) {
-      String peerLocation = sampleOrg.getPeerLocation(peerName);
-
-      Properties peerProperties = testConfig.getPeerProperties(peerName,NETWORK_PATH); //test properties for peer.. if any.
-      if (peerProperties == null) {
-        peerProperties = new Properties();
-      }
-
-      //Example of setting specific options on grpc's NettyChannelBuilder
-      peerProperties.put("grpc.NettyChannelBuilderOption.maxInboundMessageSize", 9000000);
-
-      Peer peer = client.newPeer(peerName, peerLocation, peerProperties);
+      Peer peer = channelFactory.newPeer(client, sampleOrg, peerName);
         newChannel.joinPeer(peer, createPeerOptions().setPeerRoles(EnumSet.of(Peer.PeerRole.ENDORSING_PEER, Peer.PeerRole.LEDGER_QUERY, Peer.PeerRole.CHAINCODE_QUERY, Peer.PeerRole.EVENT_SOURCE))); //Default is all roles.
 
       everyother = !everyother;
@@ -344,91 +274,23 @@ public class Main {
       newChannel.addOrderer(orderer);
     }
 
-    for (String eventHubName : sampleOrg.getEventHubNames()) {
-
-      final Properties eventHubProperties = testConfig.getEventHubProperties(eventHubName,NETWORK_PATH);
-
-      eventHubProperties.put("grpc.NettyChannelBuilderOption.keepAliveTime", new Object[]{5L, TimeUnit.MINUTES});
-      eventHubProperties.put("grpc.NettyChannelBuilderOption.keepAliveTimeout", new Object[]{8L, TimeUnit.SECONDS});
-
-      EventHub eventHub = client.newEventHub(eventHubName, sampleOrg.getEventHubLocation(eventHubName),
-          eventHubProperties);
-      newChannel.addEventHub(eventHub);
+    if (channelFactory.isUsingEventHubs()) { // otherwise the peers are the event source
+      for (String eventHubName : sampleOrg.getEventHubNames()) {
+        newChannel.addEventHub(channelFactory.newEventHub(client, sampleOrg, eventHubName));
+      }
     }
 
-    newChannel.initialize();
-
-
-    //Just checks if channel can be serialized and deserialized .. otherwise this is just a waste :)
-    byte[] serializedChannelBytes = newChannel.serializeChannel();
-    newChannel.shutdown(true);
-
-    return client.deSerializeChannel(serializedChannelBytes).initialize();
+    // initialized once, restarts restore it from the sample store, see ChannelFactory
+    return newChannel.initialize();
 
   }
 
 
-  private void enrollUsersSetup(SampleStore a) throws Exception {
-
-    for (SampleOrg sampleOrg : testSampleOrgs) {
-
-      HFCAClient ca = sampleOrg.getCAClient();
-
-      final String orgName = sampleOrg.getName();
-      final String mspid = sampleOrg.getMSPID();
-      ca.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
-
-      if (testConfig.isRunningFabricTLS()) {
-        //This shows how to get a client TLS certificate from Fabric CA
-        // we will use one client TLS certificate for orderer peers etc.
-        final EnrollmentRequest enrollmentRequestTLS = new EnrollmentRequest();
-        enrollmentRequestTLS.addHost("localhost");
-        enrollmentRequestTLS.setProfile("tls");
-        final Enrollment enroll = ca.enroll("admin", "adminpw", enrollmentRequestTLS);
-        final String tlsCertPEM = enroll.getCert();
-        final String tlsKeyPEM = getPEMStringFromPrivateKey(enroll.getKey());
-
-        final Properties tlsProperties = new Properties();
+  private void enrollUsersSetup(SampleStore sampleStore) throws Exception {
 
-        tlsProperties.put("clientKeyBytes", tlsKeyPEM.getBytes(UTF_8));
-        tlsProperties.put("clientCertBytes", tlsCertPEM.getBytes(UTF_8));
-        clientTLSProperties.put(sampleOrg.getName(), tlsProperties);
-        //Save in samplestore for follow on tests.
-        sampleStore.storeClientPEMTLCertificate(sampleOrg, tlsCertPEM);
-        sampleStore.storeClientPEMTLSKey(sampleOrg, tlsKeyPEM);
-      }
-
-      HFCAInfo info = ca.info(); //just check if we connect at all.
-      String infoName = info.getCAName();
-
-      SampleUser admin = sampleStore.getMember(TEST_ADMIN_NAME, orgName);
-      if (!admin.isEnrolled()) {  //Preregistered admin only needs to be enrolled with Fabric caClient.
-        admin.setEnrollment(ca.enroll(admin.getName(), "adminpw"));
-        admin.setMspId(mspid);
-      }
-
-      SampleUser user = sampleStore.getMember(testUser1, sampleOrg.getName());
-      if (!user.isRegistered()) {  // users need to be registered AND enrolled
-        RegistrationRequest rr = new RegistrationRequest(user.getName(), "org1.department1");
-        user.setEnrollmentSecret(ca.register(rr, admin));
-      }
-      if (!user.isEnrolled()) {
-        user.setEnrollment(ca.enroll(user.getName(), user.getEnrollmentSecret()));
-        user.setMspId(mspid);
-      }
-
-      final String sampleOrgName = sampleOrg.getName();
-      final String sampleOrgDomainName = sampleOrg.getDomainName();
-
-      SampleUser peerOrgAdmin = sampleStore.getMember(sampleOrgName + "Admin", sampleOrgName, sampleOrg.getMSPID(),
-          Util.findFileSk(Paths.get(testConfig.getTestChannelPath(NETWORK_PATH), "crypto-config/peerOrganizations/",
-              sampleOrgDomainName, format("/users/Admin@%s/msp/keystore", sampleOrgDomainName)).toFile()),
-          Paths.get(testConfig.getTestChannelPath(NETWORK_PATH), "crypto-config/peerOrganizations/", sampleOrgDomainName,
-              format("/users/Admin@%s/msp/signcerts/Admin@%s-cert.pem", sampleOrgDomainName, sampleOrgDomainName)).toFile());
-      sampleOrg.setPeerAdmin(peerOrgAdmin); //A special user that can create channels, join peers and install chaincode
-
-      sampleOrg.addUser(user);
-      sampleOrg.setAdmin(admin); // The admin of this org --
+    try (EnrollmentPipeline pipeline = new EnrollmentPipeline(testConfig, sampleStore, NETWORK_PATH,
+        testConfig.getEnrollmentParallelism())) {
+      clientTLSProperties.putAll(pipeline.enroll(testSampleOrgs, Collections.singleton(testUser1), "org1.department1"));
     }
   }
 
@@ -439,22 +301,6 @@ public class Main {
   }
 
 
-  private String getPEMStringFromPrivateKey(java.security.PrivateKey privateKey) throws Exception {
-    StringWriter pemStrWriter = new StringWriter();
-    PEMWriter pemWriter = new PEMWriter(pemStrWriter);
-
-    pemWriter.writeObject(privateKey);
-
-    pemWriter.close();
-
-    return pemStrWriter.toString();
-  }
-
-  private static String format(String format, Object... args) {
-    return new java.util.Formatter().format(format, args).toString();
-  }
-
-
   private static void resetConfig() {
 
     try {
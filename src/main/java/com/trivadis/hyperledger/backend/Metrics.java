@@ -0,0 +1,103 @@
+package com.trivadis.hyperledger.backend;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Timers and counters of the ledger operations, and traces of single transactions.
+ * <p>
+ * Off unless {@link TestConfig#isMetricsEnabled()}; until {@link #start} every call returns after reading
+ * one field. Once started the meters are kept in a Micrometer registry, tagged by org, peer, channel and
+ * chaincode function as far as the caller knows them, and served in the Prometheus text format on
+ * {@code http://localhost:<MetricsPort>/metrics}. Trace events go to the {@code <this class>.trace} logger
+ * at debug level, one line per step of a transaction, keyed by its transaction id.
+ */
+public final class Metrics {
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+    private static final Logger trace = LoggerFactory.getLogger(Metrics.class.getName() + ".trace");
+
+    private static volatile MeterRegistry registry;
+    private static HttpServer server;
+
+    private Metrics() {
+    }
+
+    /**
+     * Start recording and serving the metrics, if enabled.
+     */
+    public static synchronized void start(TestConfig testConfig) throws IOException {
+        if (!testConfig.isMetricsEnabled() || registry != null) {
+            return;
+        }
+        PrometheusMeterRegistry prometheus = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), testConfig.getMetricsPort()), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus.scrape().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        registry = prometheus;
+        log.info(String.format("Serving metrics on port %d", testConfig.getMetricsPort()));
+    }
+
+    /**
+     * Stop recording and serving the metrics.
+     */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        registry = null;
+    }
+
+    public static boolean isEnabled() {
+        return registry != null;
+    }
+
+    /**
+     * @param tags name and value pairs
+     */
+    public static void record(String name, long nanos, String... tags) {
+        MeterRegistry r = registry;
+        if (r != null) {
+            r.timer(name, tags).record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @param tags name and value pairs
+     */
+    public static void count(String name, String... tags) {
+        MeterRegistry r = registry;
+        if (r != null) {
+            r.counter(name, tags).increment();
+        }
+    }
+
+    /**
+     * Trace a step of a transaction, if recording.
+     */
+    public static void trace(String transactionId, String step, long nanos) {
+        if (registry != null && trace.isDebugEnabled()) {
+            trace.debug(String.format("txId=%s step=\"%s\" ms=%.3f", transactionId, step, nanos / 1e6));
+        }
+    }
+}
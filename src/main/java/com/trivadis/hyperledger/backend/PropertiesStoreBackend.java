@@ -0,0 +1,125 @@
+package com.trivadis.hyperledger.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps the {@link SampleStore} entries in a single {@link Properties} file.
+ * <p>
+ * Every write rewrites the whole file. The file is replaced atomically, so a crash never leaves a half
+ * written store behind. Values that are plain text are kept as they are, binary values are written Base64
+ * encoded behind a {@value #BINARY_PREFIX} prefix.
+ */
+public class PropertiesStoreBackend implements SampleStoreBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(PropertiesStoreBackend.class);
+
+    private static final String BINARY_PREFIX = "base64:";
+
+    private final Path file;
+    private final Properties properties = new Properties();
+
+    public PropertiesStoreBackend(File file) {
+        this.file = file.getAbsoluteFile().toPath();
+    }
+
+    @Override
+    public Map<String, byte[]> load() throws IOException {
+        properties.clear();
+        try (InputStream input = new FileInputStream(file.toFile())) {
+            properties.load(input);
+        } catch (FileNotFoundException e) {
+            log.info(String.format("Could not find the file \"%s\"", file));
+        }
+
+        Map<String, byte[]> ret = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            ret.put(name, decode(properties.getProperty(name)));
+        }
+        return ret;
+    }
+
+    @Override
+    public void write(Map<String, byte[]> changes) throws IOException {
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            properties.setProperty(change.getKey(), encode(change.getValue()));
+        }
+
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(tmp)) {
+                properties.store(output, "");
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static String encode(byte[] value) {
+        String text = toText(value);
+        if (text == null || text.startsWith(BINARY_PREFIX)) {
+            return BINARY_PREFIX + Base64.getEncoder().encodeToString(value);
+        }
+        return text;
+    }
+
+    private static byte[] decode(String value) {
+        if (value.startsWith(BINARY_PREFIX)) {
+            return Base64.getDecoder().decode(value.substring(BINARY_PREFIX.length()));
+        }
+        return value.getBytes(UTF_8);
+    }
+
+    /**
+     * @return the value as string if it is valid UTF-8 without control characters other than line breaks
+     * and tabs, null otherwise.
+     */
+    private static String toText(byte[] value) {
+        final String text;
+        try {
+            text = UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(value)).toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isISOControl(c) && c != '\n' && c != '\r' && c != '\t') {
+                return null;
+            }
+        }
+        return text;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return "file \"" + file + "\"";
+    }
+
+}
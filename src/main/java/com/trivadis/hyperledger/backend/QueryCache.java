@@ -0,0 +1,318 @@
+package com.trivadis.hyperledger.backend;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.FabricProposal;
+import org.hyperledger.fabric.protos.peer.FabricProposalResponse;
+import org.hyperledger.fabric.sdk.*;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache of chaincode query results in front of a {@link QueryRouter}.
+ * <p>
+ * Results are cached by chaincode name and version, function, arguments, user and transient data, so an
+ * answer depending on who asks or on transient data is only served to the same question. Each result is
+ * kept with the keys the query read, which the peer reports in the read set of its response. A block
+ * listener on the channel drops every result that read a key written by a valid transaction of a committed
+ * block. Results are also dropped once the
+ * channel is more than {@link TestConfig#getQueryCacheMaxStaleBlocks()} blocks ahead of the block they
+ * were cached at, and the cache holds at most {@link TestConfig#getQueryCacheMaxEntries()} results and
+ * {@link TestConfig#getQueryCacheMaxBytes()} bytes of payload, dropping the least recently used first.
+ * <p>
+ * Queries doing range or rich queries or reading private data aren't cached, their reads can't be invalidated
+ * key by key: a range query is recorded without its keys, and rich queries and private data reads aren't
+ * recorded in the public read set at all. Neither are queries with arguments given as bytes.
+ */
+public class QueryCache implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryCache.class);
+
+    /**
+     * Blocks whose writes are kept to check results that were in flight while the blocks came in.
+     */
+    private static final int RECENT_BLOCKS = 64;
+
+    private static final String LSCC = "lscc";
+
+    private final QueryRouter router;
+    private final Channel channel;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxStaleBlocks;
+    private final String blockListenerHandle;
+
+    // access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> entriesByReadKey = new HashMap<>();
+    private final ArrayDeque<BlockWrites> recentBlocks = new ArrayDeque<>();
+    private long bytes;
+    private long blockHeight = -1;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public QueryCache(TestConfig testConfig, QueryRouter router, Channel channel) throws InvalidArgumentException {
+        this(router, channel, testConfig.getQueryCacheMaxEntries(), testConfig.getQueryCacheMaxBytes(),
+                testConfig.getQueryCacheMaxStaleBlocks());
+    }
+
+    /**
+     * @param maxEntries     maximum number of cached results
+     * @param maxBytes       maximum size of all cached payloads
+     * @param maxStaleBlocks how many blocks a result may be behind the channel
+     */
+    public QueryCache(QueryRouter router, Channel channel, int maxEntries, long maxBytes, long maxStaleBlocks) throws InvalidArgumentException {
+        this.router = router;
+        this.channel = channel;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxStaleBlocks = maxStaleBlocks;
+        this.blockListenerHandle = channel.registerBlockListener(this::onBlock);
+    }
+
+    private static final class Entry {
+        final byte[] payload;
+        final Set<String> readKeys;
+        final long blockHeight;
+
+        Entry(byte[] payload, Set<String> readKeys, long blockHeight) {
+            this.payload = payload;
+            this.readKeys = readKeys;
+            this.blockHeight = blockHeight;
+        }
+    }
+
+    private static final class BlockWrites {
+        final long blockHeight;
+        final Set<String> keys;
+
+        BlockWrites(long blockHeight, Set<String> keys) {
+            this.blockHeight = blockHeight;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * @return the payload of the query, from the cache if it holds a current result.
+     */
+    public CompletableFuture<byte[]> query(QueryByChaincodeRequest request) {
+        return query(request, false);
+    }
+
+    /**
+     * @param bypassCache true to always ask a peer, the fresh result is cached nonetheless
+     * @return the payload of the query
+     */
+    public CompletableFuture<byte[]> query(QueryByChaincodeRequest request, boolean bypassCache) {
+        final String key = cacheKey(request);
+        if (key == null) {
+            return router.query(request).thenApply(response -> response.getProposalResponse().getResponse().getPayload().toByteArray());
+        }
+        final long heightAtSend;
+        synchronized (this) {
+            if (!bypassCache) {
+                Entry entry = entries.get(key);
+                if (entry != null && blockHeight - entry.blockHeight <= maxStaleBlocks) {
+                    hits.increment();
+                    return CompletableFuture.completedFuture(entry.payload);
+                }
+            }
+            misses.increment();
+            heightAtSend = blockHeight;
+        }
+
+        return router.query(request).thenApply(response -> {
+            byte[] payload = response.getProposalResponse().getResponse().getPayload().toByteArray();
+            try {
+                Set<String> readKeys = readKeys(response);
+                if (readKeys != null) {
+                    put(key, payload, readKeys, heightAtSend);
+                }
+            } catch (InvalidProtocolBufferException e) {
+                log.warn(String.format("Not caching query %s, can't read its read set: %s", key, e.getMessage()));
+            }
+            return payload;
+        });
+    }
+
+    /**
+     * @return the keys the query read, null if its reads aren't all in the read set: it did range or rich
+     * queries, read private data or recorded no reads at all.
+     */
+    private static Set<String> readKeys(ProposalResponse response) throws InvalidProtocolBufferException {
+        FabricProposalResponse.ProposalResponsePayload payload =
+                FabricProposalResponse.ProposalResponsePayload.parseFrom(response.getProposalResponse().getPayload());
+        FabricProposal.ChaincodeAction action = FabricProposal.ChaincodeAction.parseFrom(payload.getExtension());
+        Rwset.TxReadWriteSet txRwset = Rwset.TxReadWriteSet.parseFrom(action.getResults());
+
+        Set<String> keys = new HashSet<>();
+        boolean read = false;
+        for (Rwset.NsReadWriteSet nsRwset : txRwset.getNsRwsetList()) {
+            if (nsRwset.getCollectionHashedRwsetCount() > 0) {
+                return null;
+            }
+            KvRwset.KVRWSet rwset = KvRwset.KVRWSet.parseFrom(nsRwset.getRwset());
+            if (rwset.getRangeQueriesInfoCount() > 0) {
+                return null;
+            }
+            for (KvRwset.KVRead kvRead : rwset.getReadsList()) {
+                keys.add(stateKey(nsRwset.getNamespace(), kvRead.getKey()));
+            }
+            // every invocation reads the chaincode's definition, that alone isn't a read of the query
+            read |= rwset.getReadsCount() > 0 && !LSCC.equals(nsRwset.getNamespace());
+        }
+        return read ? keys : null;
+    }
+
+    private synchronized void put(String key, byte[] payload, Set<String> readKeys, long heightAtSend) {
+        // a block that came in while the query ran may have changed what it read
+        if (blockHeight != heightAtSend) {
+            if (recentBlocks.isEmpty() || recentBlocks.peekFirst().blockHeight > heightAtSend + 1) {
+                return; // too long ago to tell
+            }
+            for (BlockWrites block : recentBlocks) {
+                if (block.blockHeight > heightAtSend && !Collections.disjoint(block.keys, readKeys)) {
+                    return;
+                }
+            }
+        }
+        if (payload.length > maxBytes) {
+            return;
+        }
+
+        remove(key);
+        entries.put(key, new Entry(payload, readKeys, heightAtSend));
+        bytes += payload.length;
+        for (String readKey : readKeys) {
+            entriesByReadKey.computeIfAbsent(readKey, k -> new HashSet<>()).add(key);
+        }
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            unindex(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            unindex(key, entry);
+        }
+    }
+
+    private void unindex(String key, Entry entry) {
+        bytes -= entry.payload.length;
+        for (String readKey : entry.readKeys) {
+            Set<String> keys = entriesByReadKey.get(readKey);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                entriesByReadKey.remove(readKey);
+            }
+        }
+    }
+
+    private void onBlock(BlockEvent blockEvent) {
+        Set<String> written = new HashSet<>();
+        for (BlockEvent.TransactionEvent transactionEvent : blockEvent.getTransactionEvents()) {
+            if (!transactionEvent.isValid()) {
+                continue;
+            }
+            for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo actionInfo : transactionEvent.getTransactionActionInfos()) {
+                TxReadWriteSetInfo rwsetInfo = actionInfo.getTxReadWriteSet();
+                if (rwsetInfo == null) {
+                    continue;
+                }
+                for (TxReadWriteSetInfo.NsRwsetInfo nsRwsetInfo : rwsetInfo.getNsRwsetInfos()) {
+                    try {
+                        for (KvRwset.KVWrite write : nsRwsetInfo.getRwset().getWritesList()) {
+                            written.add(stateKey(nsRwsetInfo.getNamespace(), write.getKey()));
+                        }
+                    } catch (InvalidProtocolBufferException e) {
+                        log.warn(String.format("Clearing query cache, can't read write set of block %d: %s",
+                                blockEvent.getBlockNumber(), e.getMessage()));
+                        clear();
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            blockHeight = Math.max(blockHeight, blockEvent.getBlockNumber() + 1);
+            recentBlocks.addLast(new BlockWrites(blockHeight, written));
+            if (recentBlocks.size() > RECENT_BLOCKS) {
+                recentBlocks.removeFirst();
+            }
+            for (String stateKey : written) {
+                Set<String> keys = entriesByReadKey.get(stateKey);
+                if (keys != null) {
+                    for (String key : new ArrayList<>(keys)) {
+                        remove(key);
+                        invalidations.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        entriesByReadKey.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the key of the query, null if it can't be cached.
+     */
+    private static String cacheKey(QueryByChaincodeRequest request) {
+        if (request.getArgs() == null || (request.getArgBytes() != null && !request.getArgBytes().isEmpty())) {
+            return null;
+        }
+        ChaincodeID chaincodeID = request.getChaincodeID();
+        StringBuilder key = new StringBuilder(chaincodeID.getName()).append('\0').append(chaincodeID.getVersion());
+        User user = request.getUserContext(); // null for the user of the client, one per cache
+        if (user != null) {
+            key.append('\0').append(user.getMspId()).append('\0').append(user.getName());
+        }
+        Map<String, byte[]> transientMap = request.getTransientMap();
+        if (transientMap != null) {
+            for (Map.Entry<String, byte[]> entry : new TreeMap<>(transientMap).entrySet()) {
+                key.append('\0').append(entry.getKey()).append('=').append(Base64.getEncoder().encodeToString(entry.getValue()));
+            }
+        }
+        key.append('\0').append(request.getFcn());
+        for (String arg : request.getArgs()) {
+            key.append('\0').append(arg);
+        }
+        return key.toString();
+    }
+
+    private static String stateKey(String namespace, String key) {
+        return namespace + '\0' + key;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("QueryCache{entries=%d, bytes=%d, hits=%d, misses=%d, invalidations=%d, height=%d}",
+                entries.size(), bytes, hits.sum(), misses.sum(), invalidations.sum(), blockHeight);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.unregisterBlockListener(blockListenerHandle);
+        } catch (InvalidArgumentException e) {
+            log.warn(String.format("Can't unregister block listener: %s", e.getMessage()));
+        }
+        log.info(toString());
+    }
+}
@@ -0,0 +1,269 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.QueryByChaincodeRequest;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends each chaincode query to a single peer, so read throughput grows with the number of peers.
+ * <p>
+ * A peer is chosen by the power of two choices: two healthy peers are picked at random and the one with
+ * the lower expected latency, its moving average latency times the queries it has in flight, gets the
+ * query. If no answer came after the {@link TestConfig#getQueryHedgePercentile()} percentile of recent
+ * query latencies, the query is sent to a second peer as well and the first good answer wins. A peer
+ * that fails {@link TestConfig#getPeerEjectFailures()} times in a row isn't chosen for
+ * {@link TestConfig#getPeerEjectCooldown()} milliseconds, unless no other peer is left.
+ * <p>
+ * Only peers that can't be reached or answer successfully with a signature that doesn't verify count as
+ * failing. A chaincode error is an answer, verified or not, it fails the query without trying other peers
+ * and without counting against the peer.
+ */
+public class QueryRouter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryRouter.class);
+
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final Channel channel;
+    private final List<PeerState> peers = new ArrayList<>();
+    private final double hedgePercentile;
+    private final int ejectFailures;
+    private final long ejectCooldownNanos;
+
+    private final LatencyWindow latencies = new LatencyWindow();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final LongAdder hedges = new LongAdder();
+
+    public QueryRouter(TestConfig testConfig, Channel channel) {
+        this(channel, channel.getPeers(EnumSet.of(Peer.PeerRole.CHAINCODE_QUERY)), testConfig.getQueryHedgePercentile(),
+                testConfig.getPeerEjectFailures(), testConfig.getPeerEjectCooldown());
+    }
+
+    /**
+     * @param peers               the peers to route queries to
+     * @param hedgePercentile     percentile of recent latencies after which a query is hedged, 0 to never hedge
+     * @param ejectFailures       failures in a row after which a peer is ejected
+     * @param ejectCooldownMillis how long an ejected peer isn't chosen
+     */
+    public QueryRouter(Channel channel, Collection<Peer> peers, double hedgePercentile, int ejectFailures, long ejectCooldownMillis) {
+        if (peers.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Channel %s has no peers to query", channel.getName()));
+        }
+        this.channel = channel;
+        for (Peer peer : peers) {
+            this.peers.add(new PeerState(peer));
+        }
+        this.hedgePercentile = hedgePercentile;
+        this.ejectFailures = ejectFailures;
+        this.ejectCooldownNanos = TimeUnit.MILLISECONDS.toNanos(ejectCooldownMillis);
+        // a query blocks its thread, each peer may need a few for hedged and concurrent queries
+        this.executor = Executors.newFixedThreadPool(Math.max(4, peers.size() * 4), r -> {
+            Thread thread = new Thread(r, "QueryRouter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "QueryRouter-hedge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final class PeerState {
+        final Peer peer;
+        final AtomicInteger inFlight = new AtomicInteger();
+        private double ewmaNanos;
+        private int consecutiveFailures;
+        private long ejectedUntil;
+        private boolean ejected;
+
+        PeerState(Peer peer) {
+            this.peer = peer;
+        }
+
+        synchronized double score() {
+            return ewmaNanos * (inFlight.get() + 1);
+        }
+
+        synchronized boolean isEjected(long now) {
+            return ejected && now - ejectedUntil < 0;
+        }
+
+        synchronized void success(long nanos) {
+            ewmaNanos = ewmaNanos == 0 ? nanos : ewmaNanos + EWMA_WEIGHT * (nanos - ewmaNanos);
+            consecutiveFailures = 0;
+            ejected = false;
+        }
+
+        synchronized void failure(long now, String reason) {
+            if (++consecutiveFailures >= ejectFailures && !isEjected(now)) {
+                ejected = true;
+                ejectedUntil = now + ejectCooldownNanos;
+                log.warn(String.format("Ejecting peer %s for %d ms after %d failures, last: %s", peer.getName(),
+                        TimeUnit.NANOSECONDS.toMillis(ejectCooldownNanos), consecutiveFailures, reason));
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s{ewma=%.1fms, inFlight=%d, failures=%d%s}", peer.getName(), ewmaNanos / 1e6,
+                    inFlight.get(), consecutiveFailures, isEjected(System.nanoTime()) ? ", ejected" : "");
+        }
+    }
+
+    /**
+     * One query and the peers it was sent to.
+     */
+    private static final class Query {
+        final QueryByChaincodeRequest request;
+        final CompletableFuture<ProposalResponse> result = new CompletableFuture<>();
+        final Set<PeerState> tried = ConcurrentHashMap.newKeySet();
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        Query(QueryByChaincodeRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Send the query to one peer, and to a second one if the first is slow or fails.
+     *
+     * @return the first successful response, or completes exceptionally if the chaincode failed or no peer
+     * could answer.
+     */
+    public CompletableFuture<ProposalResponse> query(QueryByChaincodeRequest request) {
+        final Query query = new Query(request);
+        send(choose(query.tried), query);
+
+        final long hedgeDelay = latencies.percentile(hedgePercentile);
+        if (hedgePercentile > 0 && hedgeDelay > 0 && peers.size() > 1) {
+            final ScheduledFuture<?> hedge = timer.schedule(() -> {
+                PeerState second = query.result.isDone() ? null : choose(query.tried);
+                if (second != null) {
+                    hedges.increment();
+                    send(second, query);
+                }
+            }, hedgeDelay, TimeUnit.NANOSECONDS);
+            query.result.whenComplete((r, e) -> hedge.cancel(false));
+        }
+        return query.result;
+    }
+
+    private void send(PeerState peer, Query query) {
+        query.tried.add(peer);
+        query.outstanding.incrementAndGet();
+        peer.inFlight.incrementAndGet();
+        executor.execute(() -> {
+            final long start = System.nanoTime();
+            ProposalResponse response = null;
+            String failure = null;
+            try {
+                Iterator<ProposalResponse> responses = channel.queryByChaincode(query.request, Collections.singleton(peer.peer)).iterator();
+                response = responses.hasNext() ? responses.next() : null;
+                if (response == null) {
+                    failure = "no response";
+                } else if (response.getProposalResponse() == null) {
+                    failure = response.getMessage(); // the peer wasn't reached
+                } else if (response.getStatus() == ProposalResponse.Status.SUCCESS && !response.isVerified()) {
+                    failure = "response not verified";
+                }
+                // a chaincode error is an answer, the SDK doesn't verify it
+            } catch (Exception e) {
+                failure = e.getMessage();
+            }
+            final long now = System.nanoTime();
+            peer.inFlight.decrementAndGet();
+            if (Metrics.isEnabled()) {
+                Metrics.record("fabric.query", now - start, "channel", channel.getName(), "peer", peer.peer.getName(),
+                        "function", String.valueOf(query.request.getFcn()), "outcome", failure == null ? "success" : "failure");
+            }
+
+            if (failure == null) {
+                peer.success(now - start);
+                latencies.record(now - start);
+                query.outstanding.decrementAndGet();
+                if (response.getStatus() == ProposalResponse.Status.SUCCESS) {
+                    query.result.complete(response);
+                } else {
+                    query.result.completeExceptionally(new ProposalException(String.format("Query failed on peer %s: %s",
+                            peer.peer.getName(), response.getMessage())));
+                }
+                return;
+            }
+
+            peer.failure(now, failure);
+            PeerState next = query.result.isDone() ? null : choose(query.tried);
+            if (next != null) {
+                send(next, query);
+            }
+            // the last attempt of this query gives up
+            if (query.outstanding.decrementAndGet() == 0 && next == null) {
+                query.result.completeExceptionally(new ProposalException(String.format("Query failed on peers %s, last: %s",
+                        query.tried, failure)));
+            }
+        });
+    }
+
+    /**
+     * Pick the better of two random peers not tried yet, preferring peers that aren't ejected.
+     *
+     * @return null if every peer was tried
+     */
+    private PeerState choose(Set<PeerState> tried) {
+        final long now = System.nanoTime();
+        List<PeerState> candidates = new ArrayList<>(peers.size());
+        for (PeerState peer : peers) {
+            if (!tried.contains(peer) && !peer.isEjected(now)) {
+                candidates.add(peer);
+            }
+        }
+        if (candidates.isEmpty()) {
+            for (PeerState peer : peers) {
+                if (!tried.contains(peer)) {
+                    candidates.add(peer);
+                }
+            }
+        }
+        if (candidates.size() <= 1) {
+            return candidates.isEmpty() ? null : candidates.get(0);
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(candidates.size());
+        int b = random.nextInt(candidates.size() - 1);
+        if (b >= a) {
+            b++;
+        }
+        PeerState first = candidates.get(a);
+        PeerState second = candidates.get(b);
+        return first.score() <= second.score() ? first : second;
+    }
+
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryRouter{peers=%s, hedges=%d, hedge delay=%.1fms}", peers, getHedgeCount(),
+                latencies.percentile(hedgePercentile) / 1e6);
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        executor.shutdown();
+        log.info(toString());
+    }
+}
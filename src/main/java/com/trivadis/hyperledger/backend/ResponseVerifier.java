@@ -0,0 +1,141 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.exception.CryptoException;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.hyperledger.fabric.sdk.security.CryptoSuiteFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link CryptoSuite} counting and timing the signatures it verifies.
+ * <p>
+ * Set on the {@link org.hyperledger.fabric.sdk.HFClient}, it is what the SDK uses to verify every proposal
+ * response. The SDK verifies the responses to a proposal on the thread that sent it, so verifications run in
+ * parallel as far as proposals are sent in parallel: by the endorsement executor of the
+ * {@link TransactionSubmitter} and by the per peer threads of the {@link QueryRouter}. Every response is
+ * signed over its own transaction id, so there is nothing worth caching. Everything else is left to the
+ * wrapped suite.
+ */
+public class ResponseVerifier implements CryptoSuite, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseVerifier.class);
+
+    private final CryptoSuite delegate;
+
+    private final long started = System.nanoTime();
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder verifyNanos = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public ResponseVerifier(CryptoSuite delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean verify(byte[] certificate, String signatureAlgorithm, byte[] signature, byte[] plainText) throws CryptoException {
+        final long start = System.nanoTime();
+        try {
+            boolean valid = delegate.verify(certificate, signatureAlgorithm, signature, plainText);
+            if (!valid) {
+                failures.increment();
+            }
+            return valid;
+        } catch (CryptoException | RuntimeException e) {
+            failures.increment();
+            throw e;
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            verifications.increment();
+            verifyNanos.add(elapsed);
+            if (Metrics.isEnabled()) {
+                Metrics.record("fabric.verify", elapsed);
+            }
+        }
+    }
+
+    public long getVerificationCount() {
+        return verifications.sum();
+    }
+
+    /**
+     * @return signatures verified per second since this verifier was created.
+     */
+    public double getVerificationsPerSecond() {
+        double seconds = (System.nanoTime() - started) / (double) TimeUnit.SECONDS.toNanos(1);
+        return seconds == 0 ? 0.0 : verifications.sum() / seconds;
+    }
+
+    /**
+     * @return mean time of a verification in milliseconds.
+     */
+    public double getMeanVerifyMillis() {
+        long count = verifications.sum();
+        return count == 0 ? 0.0 : verifyNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ResponseVerifier{verified=%d, failed=%d, verifications/s=%.1f, mean=%.2fms}",
+                getVerificationCount(), failures.sum(), getVerificationsPerSecond(), getMeanVerifyMillis());
+    }
+
+    @Override
+    public void close() {
+        log.info(toString());
+    }
+
+    @Override
+    public CryptoSuiteFactory getCryptoSuiteFactory() {
+        return delegate.getCryptoSuiteFactory();
+    }
+
+    @Override
+    public Properties getProperties() {
+        return delegate.getProperties();
+    }
+
+    @Override
+    public void loadCACertificates(Collection<Certificate> certificates) throws CryptoException {
+        delegate.loadCACertificates(certificates);
+    }
+
+    @Override
+    public void loadCACertificatesAsBytes(Collection<byte[]> certificates) throws CryptoException {
+        delegate.loadCACertificatesAsBytes(certificates);
+    }
+
+    @Override
+    public KeyPair keyGen() throws CryptoException {
+        return delegate.keyGen();
+    }
+
+    @Override
+    public byte[] sign(PrivateKey key, byte[] plainText) throws CryptoException {
+        return delegate.sign(key, plainText);
+    }
+
+    @Override
+    public byte[] hash(byte[] plainText) {
+        return delegate.hash(plainText);
+    }
+
+    @Override
+    public String generateCertificationRequest(String user, KeyPair keypair) throws InvalidArgumentException {
+        return delegate.generateCertificationRequest(user, keypair);
+    }
+
+    @Override
+    public Certificate bytesToCertificate(byte[] certBytes) throws CryptoException {
+        return delegate.bytesToCertificate(certBytes);
+    }
+}
@@ -54,6 +54,10 @@ public class SampleOrg {
         this.mspid = mspid;
     }
 
+    public SampleUser getAdmin() {
+        return admin;
+    }
+
     public void setAdmin(SampleUser admin) {
         this.admin = admin;
     }
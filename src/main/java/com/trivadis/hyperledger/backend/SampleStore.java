@@ -35,20 +35,73 @@ import java.security.PrivateKey;
 import java.security.Security;
 import java.security.spec.InvalidKeySpecException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * A local file-based key value store.
+ * <p>
+ * The entries are read once from the {@link SampleStoreBackend} and then served from memory. Changes are
+ * written back in batches, either when enough of them have accumulated, when the flush timer fires, or on
+ * an explicit {@link #flush()} or {@link #close()}.
+ * <p>
+ * The store is safe to use from many threads. Reads and writes go to a concurrent map without locking,
+ * while a single writer thread owns the backend and drains the changed entries into it.
  */
-public class SampleStore {
+public class SampleStore implements Closeable {
+
+    private static final int DEFAULT_FLUSH_BATCH_SIZE = 64;
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000L;
+    private static final int DEFAULT_MEMBER_CACHE_SIZE = 10000;
+    private static final long DEFAULT_MEMBER_CACHE_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
 
-    private String file;
     private Logger log = LoggerFactory.getLogger(SampleStore.class);
     private CryptoSuite cryptoSuite;
 
+    private final SampleStoreBackend backend;
+    private final Map<String, byte[]> values = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean writeBackRequested = new AtomicBoolean();
+    private final int flushBatchSize;
+    private final ScheduledExecutorService writer;
+    private volatile boolean autoSaveMembers = true;
+    // setters hold the read lock, close the write lock while it marks the store closed
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+
     public SampleStore(File file) {
-        this.file = file.getAbsolutePath();
+        this(new PropertiesStoreBackend(file), DEFAULT_FLUSH_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public SampleStore(SampleStoreBackend backend) {
+        this(backend, DEFAULT_FLUSH_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param backend             where the entries are persisted
+     * @param flushBatchSize      number of changed entries that triggers a write back
+     * @param flushIntervalMillis period of the background write back, 0 or less disables the timer
+     */
+    public SampleStore(SampleStoreBackend backend, int flushBatchSize, long flushIntervalMillis) {
+        this.backend = backend;
+        this.flushBatchSize = Math.max(1, flushBatchSize);
+        this.values.putAll(load(backend));
+
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SampleStore-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (flushIntervalMillis > 0) {
+            writer.scheduleWithFixedDelay(this::writeBack, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -58,8 +111,19 @@ public class SampleStore {
      * @return value associated with the name
      */
     public String getValue(String name) {
-        Properties properties = loadProperties();
-        return properties.getProperty(name);
+        byte[] value = values.get(name);
+        return value == null ? null : new String(value, UTF_8);
+    }
+
+    /**
+     * Get the raw value associated with name. The returned array is shared with the store and must not
+     * be modified.
+     *
+     * @param name
+     * @return value associated with the name
+     */
+    public byte[] getBytes(String name) {
+        return values.get(name);
     }
 
     /**
@@ -69,45 +133,166 @@ public class SampleStore {
      * @return true if it's present.
      */
     public boolean hasValue(String name) {
-        Properties properties = loadProperties();
-        return properties.containsKey(name);
+        return values.containsKey(name);
     }
 
-    private Properties loadProperties() {
-        Properties properties = new Properties();
-        try (InputStream input = new FileInputStream(file)) {
-            properties.load(input);
-        } catch (FileNotFoundException e) {
-            log.info(String.format("Could not find the file \"%s\"", file));
+    private Map<String, byte[]> load(SampleStoreBackend backend) {
+        final long start = System.nanoTime();
+        try {
+            return backend.load();
         } catch (IOException e) {
-            log.warn(String.format("Could not load keyvalue store from file \"%s\", reason:%s",
-                    file, e.getMessage()));
+            log.warn(String.format("Could not load keyvalue store from %s, reason:%s", backend, e.getMessage()));
+            return new HashMap<>();
+        } finally {
+            if (Metrics.isEnabled()) {
+                Metrics.record("samplestore.io", System.nanoTime() - start, "operation", "load");
+            }
         }
-
-        return properties;
     }
 
     /**
-     * Set the value associated with name.
+     * Set the value associated with name. The change is visible immediately and written to the backend
+     * with the next batch.
      *
      * @param name  The name of the parameter
      * @param value Value for the parameter
      */
     public void setValue(String name, String value) {
-        Properties properties = loadProperties();
-        try (
-                OutputStream output = new FileOutputStream(file)
-        ) {
-            properties.setProperty(name, value);
-            properties.store(output, "");
-            output.close();
+        setBytes(name, value.getBytes(UTF_8));
+    }
+
+    /**
+     * Set the raw value associated with name. The store keeps the array, it must not be modified
+     * afterwards.
+     *
+     * @param name  The name of the parameter
+     * @param value Value for the parameter
+     * @throws IllegalStateException if the store is closed
+     */
+    public void setBytes(String name, byte[] value) {
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException(String.format("Could not set %s, the keyvalue store is closed", name));
+            }
+            values.put(name, value);
+            dirty.add(name);
+            if (dirty.size() >= flushBatchSize && writeBackRequested.compareAndSet(false, true)) {
+                writer.execute(this::writeBack);
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if members save themselves on every setter call.
+     */
+    public boolean isAutoSaveMembers() {
+        return autoSaveMembers;
+    }
+
+    /**
+     * Let members save themselves on every setter call and when they are first created. On by default;
+     * when off, changes are only saved through {@link SampleUser#edit()} or {@link SampleUser#saveState()}.
+     *
+     * @param autoSaveMembers
+     */
+    public void setAutoSaveMembers(boolean autoSaveMembers) {
+        this.autoSaveMembers = autoSaveMembers;
+    }
+
+    /**
+     * Write all pending changes to the backend and wait until they are written. If writing fails the
+     * changes stay pending and are retried with the next flush.
+     */
+    public void flush() {
+        try {
+            writer.submit(this::writeBack).get();
+        } catch (RejectedExecutionException e) {
+            log.warn("Could not flush the keyvalue store, it is closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.warn(String.format("Could not flush the keyvalue store, reason:%s", e.getCause().getMessage()));
+        }
+    }
 
+    /**
+     * Drain the changed entries into the backend. Only ever runs on the writer thread.
+     * <p>
+     * A name is taken out of the dirty set before its value is read, so a concurrent change either is
+     * part of this batch or marks the name dirty again for the next one; no update is lost.
+     */
+    private void writeBack() {
+        writeBackRequested.set(false);
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Map<String, byte[]> changes = new HashMap<>();
+        for (Iterator<String> it = dirty.iterator(); it.hasNext(); ) {
+            String name = it.next();
+            it.remove();
+            changes.put(name, values.get(name));
+        }
+        final long start = System.nanoTime();
+        try {
+            backend.write(changes);
         } catch (IOException e) {
+            dirty.addAll(changes.keySet());
             log.warn(String.format("Could not save the keyvalue store, reason:%s", e.getMessage()));
+        } finally {
+            if (Metrics.isEnabled()) {
+                Metrics.record("samplestore.io", System.nanoTime() - start, "operation", "write");
+            }
         }
     }
 
-    private final Map<String, SampleUser> members = new HashMap<>();
+    /**
+     * Stop the background write back, flush the pending changes and close the backend. Setting a value
+     * afterwards fails.
+     */
+    @Override
+    public void close() {
+        // every change accepted before is dirty by now and goes out with the last flush
+        closeLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+        flush();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            backend.close();
+        } catch (IOException e) {
+            log.warn(String.format("Could not close the keyvalue store, reason:%s", e.getMessage()));
+        }
+    }
+
+    private volatile LruCache<String, SampleUser> members = new LruCache<>(DEFAULT_MEMBER_CACHE_SIZE, DEFAULT_MEMBER_CACHE_IDLE_MILLIS);
+
+    /**
+     * Replace the member cache with an empty one of the given bounds.
+     *
+     * @param maxSize       maximum number of cached members
+     * @param maxIdleMillis members not used for this long are dropped from the cache
+     */
+    public void setMemberCacheBounds(int maxSize, long maxIdleMillis) {
+        members = new LruCache<>(maxSize, maxIdleMillis);
+    }
+
+    /**
+     * @return the member cache, for its hit and miss counts.
+     */
+    public LruCache<String, SampleUser> getMemberCache() {
+        return members;
+    }
 
     /**
      * Get the user with a given name
@@ -118,16 +303,9 @@ public class SampleStore {
      */
     public SampleUser getMember(String name, String org) {
 
-        // Try to get the SampleUser state from the cache
-        SampleUser sampleUser = members.get(SampleUser.toKeyValStoreName(name, org));
-        if (null != sampleUser) {
-            return sampleUser;
-        }
-
-        // Create the SampleUser and try to restore it's state from the key value store (if found).
-        sampleUser = new SampleUser(name, org, this, cryptoSuite);
-
-        return sampleUser;
+        // Get the SampleUser from the cache, or create it and try to restore it's state from the key value store (if found).
+        return members.computeIfAbsent(SampleUser.toKeyValStoreName(name, org),
+                key -> new SampleUser(name, org, this, cryptoSuite));
 
     }
 
@@ -168,24 +346,23 @@ public class SampleStore {
 
         try {
             // Try to get the SampleUser state from the cache
-            SampleUser sampleUser = members.get(SampleUser.toKeyValStoreName(name, org));
+            String key = SampleUser.toKeyValStoreName(name, org);
+            SampleUser sampleUser = members.get(key);
             if (null != sampleUser) {
                 return sampleUser;
             }
 
-            // Create the SampleUser and try to restore it's state from the key value store (if found).
-            sampleUser = new SampleUser(name, org, this, cryptoSuite);
-            sampleUser.setMspId(mspId);
-
+            // read outside the cache, its loader holds a lock
             String certificate = new String(IOUtils.toByteArray(new FileInputStream(certificateFile)), "UTF-8");
 
             PrivateKey privateKey = getPrivateKeyFromBytes(IOUtils.toByteArray(new FileInputStream(privateKeyFile)));
 
-            sampleUser.setEnrollment(new SampleStoreEnrollement(privateKey, certificate));
-
-            sampleUser.saveState();
-
-            return sampleUser;
+            // Create the SampleUser and try to restore it's state from the key value store (if found), once
+            // even if called concurrently.
+            return members.computeIfAbsent(key, k -> new SampleUser(name, org, this, cryptoSuite).edit()
+                    .mspId(mspId)
+                    .enrollment(new SampleStoreEnrollement(privateKey, certificate))
+                    .commit());
         } catch (IOException e) {
             e.printStackTrace();
             throw e;
@@ -252,22 +429,42 @@ public class SampleStore {
 
    public void saveChannel(Channel channel) throws IOException, InvalidArgumentException {
 
-        setValue("channel." + channel.getName(), Hex.toHexString(channel.serializeChannel()));
+        setBytes("channel." + channel.getName(), channel.serializeChannel());
 
     }
 
     Channel getChannel(HFClient client, String name) throws IOException, ClassNotFoundException, InvalidArgumentException {
         Channel ret = null;
 
-        String channelHex = getValue("channel." + name);
-        if (channelHex != null) {
-
-            ret = client.deSerializeChannel(Hex.decode(channelHex));
+        byte[] channelBytes = getBytes("channel." + name);
+        if (channelBytes != null) {
+            // older versions kept the serialized channel hex encoded
+            if (!SampleUserCodec.isJavaSerialized(channelBytes)) {
+                channelBytes = Hex.decode(new String(channelBytes, UTF_8));
+            }
+            ret = client.deSerializeChannel(channelBytes);
 
         }
         return ret;
     }
 
+    /**
+     * Remember the last block a consumer of channel events processed.
+     */
+    public void saveCheckpoint(String name, long blockNumber) {
+
+        setValue("checkpoint." + name, Long.toString(blockNumber));
+
+    }
+
+    /**
+     * @return the last block the consumer processed, -1 if none.
+     */
+    public long getCheckpoint(String name) {
+        String value = getValue("checkpoint." + name);
+        return value == null ? -1 : Long.parseLong(value);
+    }
+
     public void storeClientPEMTLSKey(SampleOrg sampleOrg, String key) {
 
         setValue("clientPEMTLSKey." + sampleOrg.getName(), key);
@@ -0,0 +1,32 @@
+package com.trivadis.hyperledger.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Persistence behind a {@link SampleStore}.
+ * <p>
+ * The store keeps the authoritative copy of all entries in memory, the backend is only asked to read
+ * them once at startup and to persist the entries that changed since the last flush. Calls are never
+ * made concurrently by the store.
+ */
+public interface SampleStoreBackend extends Closeable {
+
+    /**
+     * Read all entries persisted so far.
+     *
+     * @return the persisted entries, empty if there are none yet.
+     * @throws IOException
+     */
+    Map<String, byte[]> load() throws IOException;
+
+    /**
+     * Persist a batch of changed entries.
+     *
+     * @param changes the entries that changed since the last call
+     * @throws IOException
+     */
+    void write(Map<String, byte[]> changes) throws IOException;
+
+}
@@ -15,18 +15,30 @@
 package com.trivadis.hyperledger.backend;
 
 import io.netty.util.internal.StringUtil;
-import org.bouncycastle.util.encoders.Hex;
 import org.hyperledger.fabric.sdk.Enrollment;
 import org.hyperledger.fabric.sdk.User;
 import org.hyperledger.fabric.sdk.security.CryptoSuite;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 
+/**
+ * A user kept in a {@link SampleStore}.
+ * <p>
+ * Changes made through the setters are saved right away unless the store has
+ * {@link SampleStore#setAutoSaveMembers(boolean) auto save} disabled. Group them with {@link #edit()}
+ * so they are saved once.
+ * <p>
+ * The fields are guarded by the user itself, the lock {@link Editor#commit()} holds while it applies its
+ * changes, so a reader never sees an edit half applied.
+ */
 public class SampleUser implements User, Serializable {
     private static final long serialVersionUID = 8077132186383604355L;
 
+    // guarded by this
     private String name;
     private Set<String> roles;
     private String account;
@@ -47,9 +59,10 @@ public class SampleUser implements User, Serializable {
         this.keyValStore = fs;
         this.organization = org;
         this.keyValStoreName = toKeyValStoreName(this.name, org);
-        String memberStr = keyValStore.getValue(keyValStoreName);
-        if (null == memberStr) {
-            saveState();
+        if (!keyValStore.hasValue(keyValStoreName)) {
+            if (keyValStore.isAutoSaveMembers()) {
+                saveState();
+            }
         } else {
             restoreState();
         }
@@ -62,23 +75,23 @@ public class SampleUser implements User, Serializable {
     }
 
     @Override
-    public String getName() {
+    public synchronized String getName() {
         return this.name;
     }
 
     @Override
-    public Set<String> getRoles() {
+    public synchronized Set<String> getRoles() {
         return this.roles;
     }
 
-    public void setRoles(Set<String> roles) {
+    public synchronized void setRoles(Set<String> roles) {
 
         this.roles = roles;
-        saveState();
+        autoSave();
     }
 
     @Override
-    public String getAccount() {
+    public synchronized String getAccount() {
         return this.account;
     }
 
@@ -87,20 +100,24 @@ public class SampleUser implements User, Serializable {
      *
      * @param account The account.
      */
-    public void setAccount(String account) {
+    public synchronized void setAccount(String account) {
 
         this.account = account;
-        saveState();
+        autoSave();
     }
 
     @Override
-    public String getAffiliation() {
+    public synchronized String getAffiliation() {
         return this.affiliation;
     }
 
 
+    synchronized String getOrganization() {
+        return this.organization;
+    }
+
     @Override
-    public Enrollment getEnrollment() {
+    public synchronized Enrollment getEnrollment() {
         return this.enrollment;
     }
 
@@ -109,7 +126,7 @@ public class SampleUser implements User, Serializable {
      *
      * @return {@code true} if registered; otherwise {@code false}.
      */
-    public boolean isRegistered() {
+    public synchronized boolean isRegistered() {
         return !StringUtil.isNullOrEmpty(enrollmentSecret);
     }
 
@@ -118,21 +135,34 @@ public class SampleUser implements User, Serializable {
      *
      * @return {@code true} if enrolled; otherwise {@code false}.
      */
-    public boolean isEnrolled() {
+    public synchronized boolean isEnrolled() {
         return this.enrollment != null;
     }
 
     /**
-     * Save the state of this user to the key value store.
+     * Start a group of changes that is applied and saved once on {@link Editor#commit()}.
+     *
+     * @return the editor collecting the changes.
+     */
+    public Editor edit() {
+        return new Editor();
+    }
+
+    private void autoSave() {
+        if (keyValStore.isAutoSaveMembers()) {
+            saveState();
+        }
+    }
+
+    /**
+     * Save the state of this user to the key value store. Users whose enrollment can't be written by
+     * {@link SampleUserCodec} fall back to Java serialization.
      */
-    void saveState() {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    synchronized void saveState() {
         try {
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(this);
-            oos.flush();
-            keyValStore.setValue(keyValStoreName, Hex.toHexString(bos.toByteArray()));
-            bos.close();
+            byte[] state = SampleUserCodec.canEncode(enrollment)
+                    ? SampleUserCodec.encode(this) : SampleUserCodec.encodeLegacy(this);
+            keyValStore.setBytes(keyValStoreName, state);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -140,28 +170,29 @@ public class SampleUser implements User, Serializable {
 
     /**
      * Restore the state of this user from the key value store (if found).  If not found, do nothing.
+     * State written by older versions is read as well and rewritten in the current format.
      */
-    SampleUser restoreState() {
-        String memberStr = keyValStore.getValue(keyValStoreName);
-        if (null != memberStr) {
+    synchronized SampleUser restoreState() {
+        byte[] memberBytes = keyValStore.getBytes(keyValStoreName);
+        if (null != memberBytes) {
             // The user was found in the key value store, so restore the
             // state.
-            byte[] serialized = Hex.decode(memberStr);
-            ByteArrayInputStream bis = new ByteArrayInputStream(serialized);
             try {
-                ObjectInputStream ois = new ObjectInputStream(bis);
-                SampleUser state = (SampleUser) ois.readObject();
-                if (state != null) {
-                    this.name = state.name;
-                    this.roles = state.roles;
-                    this.account = state.account;
-                    this.affiliation = state.affiliation;
-                    this.organization = state.organization;
-                    this.enrollmentSecret = state.enrollmentSecret;
-                    this.enrollment = state.enrollment;
-                    this.mspId = state.mspId;
-                    return this;
+                boolean legacy = !SampleUserCodec.isEncoded(memberBytes);
+                SampleUserCodec.State state = legacy
+                        ? SampleUserCodec.decodeLegacy(memberBytes) : SampleUserCodec.decode(memberBytes);
+                this.name = state.name;
+                this.roles = state.roles;
+                this.account = state.account;
+                this.affiliation = state.affiliation;
+                this.organization = state.organization;
+                this.enrollmentSecret = state.enrollmentSecret;
+                this.enrollment = state.enrollment;
+                this.mspId = state.mspId;
+                if (legacy && SampleUserCodec.canEncode(enrollment)) {
+                    saveState();
                 }
+                return this;
             } catch (Exception e) {
                 throw new RuntimeException(String.format("Could not restore state of member %s", this.name), e);
             }
@@ -169,19 +200,19 @@ public class SampleUser implements User, Serializable {
         return null;
     }
 
-    public String getEnrollmentSecret() {
+    public synchronized String getEnrollmentSecret() {
         return enrollmentSecret;
     }
 
-    public void setEnrollmentSecret(String enrollmentSecret) {
+    public synchronized void setEnrollmentSecret(String enrollmentSecret) {
         this.enrollmentSecret = enrollmentSecret;
-        saveState();
+        autoSave();
     }
 
-    public void setEnrollment(Enrollment enrollment) {
+    public synchronized void setEnrollment(Enrollment enrollment) {
 
         this.enrollment = enrollment;
-        saveState();
+        autoSave();
 
     }
 
@@ -190,15 +221,70 @@ public class SampleUser implements User, Serializable {
     }
 
     @Override
-    public String getMspId() {
+    public synchronized String getMspId() {
         return mspId;
     }
 
     String mspId;
 
-    public void setMspId(String mspID) {
+    public synchronized void setMspId(String mspID) {
         this.mspId = mspID;
-        saveState();
+        autoSave();
 
     }
+
+    /**
+     * Collects changes to a {@link SampleUser}. Nothing is visible on the user before {@link #commit()}.
+     */
+    public final class Editor {
+
+        private final List<Runnable> changes = new ArrayList<>();
+
+        private Editor() {
+        }
+
+        public Editor roles(Set<String> roles) {
+            changes.add(() -> SampleUser.this.roles = roles);
+            return this;
+        }
+
+        public Editor account(String account) {
+            changes.add(() -> SampleUser.this.account = account);
+            return this;
+        }
+
+        public Editor enrollmentSecret(String enrollmentSecret) {
+            changes.add(() -> SampleUser.this.enrollmentSecret = enrollmentSecret);
+            return this;
+        }
+
+        public Editor enrollment(Enrollment enrollment) {
+            changes.add(() -> SampleUser.this.enrollment = enrollment);
+            return this;
+        }
+
+        public Editor mspId(String mspId) {
+            changes.add(() -> SampleUser.this.mspId = mspId);
+            return this;
+        }
+
+        /**
+         * Apply the collected changes to the user and save it once. Concurrent commits on the same user
+         * are applied one after the other.
+         *
+         * @return the edited user.
+         */
+        public SampleUser commit() {
+            synchronized (SampleUser.this) {
+                if (!changes.isEmpty()) {
+                    for (Runnable change : changes) {
+                        change.run();
+                    }
+                    changes.clear();
+                    saveState();
+                }
+            }
+            return SampleUser.this;
+        }
+    }
 }
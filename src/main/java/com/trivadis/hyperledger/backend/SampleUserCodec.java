@@ -0,0 +1,204 @@
+package com.trivadis.hyperledger.backend;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.hyperledger.fabric.sdk.Enrollment;
+
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compact binary form of the {@link SampleUser} state kept in the {@link SampleStore}.
+ * <p>
+ * Layout: a magic byte, a version byte, then name, organization, mspId, account, affiliation and
+ * enrollment secret as length prefixed UTF-8 strings, the roles and finally the enrollment as PEM
+ * certificate plus the PKCS#8 encoded private key. The magic byte is neither a hex digit nor the start of
+ * a Java serialization stream, so values written by older versions are still recognized and read.
+ */
+final class SampleUserCodec {
+
+    private static final byte MAGIC = (byte) 0xB5;
+    private static final byte VERSION_1 = 1;
+
+    private static final int NULL_LENGTH = -1;
+
+    private SampleUserCodec() {
+    }
+
+    /**
+     * State read back from the store.
+     */
+    static final class State {
+        String name;
+        String organization;
+        String mspId;
+        String account;
+        String affiliation;
+        String enrollmentSecret;
+        Set<String> roles;
+        Enrollment enrollment;
+    }
+
+    /**
+     * @return true if the enrollment can be written by {@link #encode(SampleUser)}.
+     */
+    static boolean canEncode(Enrollment enrollment) {
+        return enrollment == null || (enrollment.getKey() != null && enrollment.getKey().getEncoded() != null
+                && "PKCS#8".equals(enrollment.getKey().getFormat()));
+    }
+
+    static byte[] encode(SampleUser user) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bos);
+
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION_1);
+        writeString(out, user.getName());
+        writeString(out, user.getOrganization());
+        writeString(out, user.getMspId());
+        writeString(out, user.getAccount());
+        writeString(out, user.getAffiliation());
+        writeString(out, user.getEnrollmentSecret());
+
+        Set<String> roles = user.getRoles();
+        if (roles == null) {
+            out.writeInt(NULL_LENGTH);
+        } else {
+            out.writeInt(roles.size());
+            for (String role : roles) {
+                writeString(out, role);
+            }
+        }
+
+        Enrollment enrollment = user.getEnrollment();
+        if (enrollment == null) {
+            out.writeBoolean(false);
+        } else {
+            if (!canEncode(enrollment)) {
+                throw new IOException(String.format("Cannot encode enrollment of type %s", enrollment.getClass().getName()));
+            }
+            out.writeBoolean(true);
+            writeString(out, enrollment.getCert());
+            writeString(out, enrollment.getKey().getAlgorithm());
+            writeBytes(out, enrollment.getKey().getEncoded());
+        }
+
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return true if the value was written by this codec.
+     */
+    static boolean isEncoded(byte[] data) {
+        return data.length > 1 && data[0] == MAGIC;
+    }
+
+    static State decode(byte[] data) throws IOException, GeneralSecurityException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        if (in.readByte() != MAGIC) {
+            throw new IOException("Not an encoded user");
+        }
+        byte version = in.readByte();
+        if (version != VERSION_1) {
+            throw new IOException(String.format("Unsupported user encoding version %d", version));
+        }
+
+        State state = new State();
+        state.name = readString(in);
+        state.organization = readString(in);
+        state.mspId = readString(in);
+        state.account = readString(in);
+        state.affiliation = readString(in);
+        state.enrollmentSecret = readString(in);
+
+        int roleCount = in.readInt();
+        if (roleCount != NULL_LENGTH) {
+            state.roles = new HashSet<>();
+            for (int i = 0; i < roleCount; i++) {
+                state.roles.add(readString(in));
+            }
+        }
+
+        if (in.readBoolean()) {
+            String certificate = readString(in);
+            String algorithm = readString(in);
+            byte[] encodedKey = readBytes(in);
+            PrivateKey key = KeyFactory.getInstance(algorithm, BouncyCastleProvider.PROVIDER_NAME)
+                    .generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+            state.enrollment = new SampleStore.SampleStoreEnrollement(key, certificate);
+        }
+        return state;
+    }
+
+    /**
+     * Read a user written by an older version: a Java serialized {@link SampleUser}, either raw or hex
+     * encoded text as it used to be kept in the properties file.
+     */
+    static State decodeLegacy(byte[] data) throws IOException, ClassNotFoundException {
+        byte[] serialized = isJavaSerialized(data) ? data : Hex.decode(new String(data, UTF_8));
+        final SampleUser user;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            user = (SampleUser) ois.readObject();
+        }
+
+        State state = new State();
+        state.name = user.getName();
+        state.organization = user.getOrganization();
+        state.mspId = user.getMspId();
+        state.account = user.getAccount();
+        state.affiliation = user.getAffiliation();
+        state.enrollmentSecret = user.getEnrollmentSecret();
+        state.roles = user.getRoles();
+        state.enrollment = user.getEnrollment();
+        return state;
+    }
+
+    static byte[] encodeLegacy(SampleUser user) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(user);
+        }
+        return bos.toByteArray();
+    }
+
+    static boolean isJavaSerialized(byte[] data) {
+        return data.length > 1 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,413 @@
+package com.trivadis.hyperledger.backend;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Keeps the {@link SampleStore} entries in an append-only log split into segment files.
+ * <p>
+ * Every changed entry is appended as one record to the active segment, so persisting a change costs a
+ * single small write no matter how big the store is. An in-memory index remembers where the live record
+ * of each key is. Once enough segments have been sealed and at least half of their bytes are overwritten
+ * records, a background task copies the live records of all sealed segments into one new segment and
+ * deletes the old ones, so the log stays proportional to the live key set.
+ * <p>
+ * Record layout: {@code crc32(int) keyLength(int) valueLength(int) key value}, the checksum covering
+ * everything after it. A torn record at the end of the last segment, left by a crash, is cut off on load.
+ */
+public class SegmentLogStoreBackend implements SampleStoreBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentLogStoreBackend.class);
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final int HEADER_SIZE = 12;
+
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+    private static final int DEFAULT_COMPACT_SEGMENT_COUNT = 4;
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final int compactSegmentCount;
+
+    private final Map<String, Location> index = new HashMap<>();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private FileChannel active;
+    private long activeId;
+
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SampleStore-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean compacting = false;
+
+    public SegmentLogStoreBackend(File directory) {
+        this(directory, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_COMPACT_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param directory           directory holding the segment files, created if missing
+     * @param maxSegmentBytes     size after which the active segment is sealed and a new one started
+     * @param compactSegmentCount number of sealed segments that triggers a background compaction
+     */
+    public SegmentLogStoreBackend(File directory, long maxSegmentBytes, int compactSegmentCount) {
+        this.directory = directory.getAbsoluteFile().toPath();
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.compactSegmentCount = Math.max(1, compactSegmentCount);
+    }
+
+    @Override
+    public synchronized Map<String, byte[]> load() throws IOException {
+        Files.createDirectories(directory);
+
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*" + COMPACT_SUFFIX)) {
+            for (Path leftover : leftovers) {
+                log.info(String.format("Removing unfinished compaction \"%s\"", leftover));
+                Files.delete(leftover);
+            }
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                long id = segmentId(file);
+                segments.put(id, new Segment(id, file));
+            }
+        }
+
+        Map<String, byte[]> ret = new HashMap<>();
+        for (Segment segment : segments.values()) {
+            boolean last = segment.id == segments.lastKey();
+            replay(segment, ret, last);
+        }
+
+        if (segments.isEmpty()) {
+            openActive(0);
+        } else {
+            Segment last = segments.lastEntry().getValue();
+            activeId = last.id;
+            active = FileChannel.open(last.file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return ret;
+    }
+
+    private void replay(Segment segment, Map<String, byte[]> values, boolean last) throws IOException {
+        long offset = 0;
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ);
+             DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))) {
+
+            long size = channel.size();
+            while (offset + HEADER_SIZE <= size) {
+                int crc = input.readInt();
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                if (keyLength < 0 || valueLength < 0 || offset + HEADER_SIZE + keyLength + valueLength > size) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                input.readFully(key);
+                input.readFully(value);
+                if (crc != checksum(keyLength, valueLength, key, value)) {
+                    break;
+                }
+
+                int recordSize = HEADER_SIZE + keyLength + valueLength;
+                String name = new String(key, UTF_8);
+                values.put(name, value);
+                track(name, new Location(segment.id, offset, recordSize));
+                segment.size += recordSize;
+                offset += recordSize;
+            }
+
+            if (offset < size) {
+                if (last) {
+                    log.warn(String.format("Truncating torn record at %d in \"%s\"", offset, segment.file));
+                    try (FileChannel truncate = FileChannel.open(segment.file, StandardOpenOption.WRITE)) {
+                        truncate.truncate(offset);
+                    }
+                } else {
+                    log.warn(String.format("Ignoring corrupt data after %d in \"%s\"", offset, segment.file));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void write(Map<String, byte[]> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        int batchSize = 0;
+        List<byte[]> keys = new ArrayList<>(changes.size());
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            byte[] key = change.getKey().getBytes(UTF_8);
+            keys.add(key);
+            batchSize += HEADER_SIZE + key.length + change.getValue().length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(batchSize);
+        final long start = active.size();
+        long offset = start;
+        Map<String, Location> written = new LinkedHashMap<>();
+        int i = 0;
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            byte[] key = keys.get(i++);
+            byte[] value = change.getValue();
+            int recordSize = HEADER_SIZE + key.length + value.length;
+
+            buffer.putInt(checksum(key.length, value.length, key, value));
+            buffer.putInt(key.length);
+            buffer.putInt(value.length);
+            buffer.put(key);
+            buffer.put(value);
+
+            written.put(change.getKey(), new Location(activeId, offset, recordSize));
+            offset += recordSize;
+        }
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                active.write(buffer);
+            }
+            active.force(false);
+        } catch (IOException e) {
+            // don't leave a partial batch in front of the records the retry will append
+            active.truncate(start);
+            throw e;
+        }
+
+        Segment segment = segments.get(activeId);
+        for (Map.Entry<String, Location> entry : written.entrySet()) {
+            track(entry.getKey(), entry.getValue());
+            segment.size += entry.getValue().size;
+        }
+
+        if (offset >= maxSegmentBytes) {
+            active.close();
+            openActive(activeId + 1);
+            maybeCompact();
+        }
+    }
+
+    private void openActive(long id) throws IOException {
+        Path file = segmentFile(id);
+        active = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeId = id;
+        segments.put(id, new Segment(id, file));
+    }
+
+    private void track(String name, Location location) {
+        Location previous = index.put(name, location);
+        if (previous != null) {
+            Segment segment = segments.get(previous.segment);
+            if (segment != null) {
+                segment.dead += previous.size;
+            }
+        }
+    }
+
+    private void maybeCompact() {
+        if (compacting) {
+            return;
+        }
+        Collection<Segment> sealed = segments.headMap(activeId).values();
+        long size = 0;
+        long dead = 0;
+        for (Segment segment : sealed) {
+            size += segment.size;
+            dead += segment.dead;
+        }
+        // Only worth it once there are enough segments and at least half of them is overwritten data.
+        if (sealed.size() < compactSegmentCount || dead * 2 < size) {
+            return;
+        }
+        compacting = true;
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                log.warn(String.format("Could not compact keyvalue store in \"%s\", reason:%s", directory, e.getMessage()));
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy the live records of all sealed segments into one segment that takes the place of the newest
+     * of them. The sealed segments are immutable, so they are read without holding the lock.
+     */
+    private void compact() throws IOException {
+        final List<Segment> sealed;
+        final Map<String, Location> live = new LinkedHashMap<>();
+        synchronized (this) {
+            sealed = new ArrayList<>(segments.headMap(activeId).values());
+            if (sealed.isEmpty()) {
+                return;
+            }
+            Set<Long> ids = new HashSet<>();
+            for (Segment segment : sealed) {
+                ids.add(segment.id);
+            }
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (ids.contains(entry.getValue().segment)) {
+                    live.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        Segment target = sealed.get(sealed.size() - 1);
+        Path tmp = directory.resolve(target.file.getFileName() + COMPACT_SUFFIX);
+        Map<String, Location> moved = new HashMap<>();
+        long offset = 0;
+
+        Map<Long, FileChannel> readers = new HashMap<>();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (Segment segment : sealed) {
+                readers.put(segment.id, FileChannel.open(segment.file, StandardOpenOption.READ));
+            }
+            for (Map.Entry<String, Location> entry : live.entrySet()) {
+                Location location = entry.getValue();
+                ByteBuffer record = ByteBuffer.allocate(location.size);
+                FileChannel reader = readers.get(location.segment);
+                while (record.hasRemaining()) {
+                    if (reader.read(record, location.offset + record.position()) < 0) {
+                        throw new EOFException("Unexpected end of segment " + location.segment);
+                    }
+                }
+                record.flip();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+                moved.put(entry.getKey(), new Location(target.id, offset, location.size));
+                offset += location.size;
+            }
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        } finally {
+            for (FileChannel reader : readers.values()) {
+                reader.close();
+            }
+        }
+
+        synchronized (this) {
+            // Replacing the newest sealed segment first keeps the log replayable at any point: older segments
+            // only ever hold values the compacted one overrides.
+            Files.move(tmp, target.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (Segment segment : sealed) {
+                if (segment != target) {
+                    Files.deleteIfExists(segment.file);
+                    segments.remove(segment.id);
+                }
+            }
+
+            Segment compacted = new Segment(target.id, target.file);
+            compacted.size = offset;
+            segments.put(target.id, compacted);
+            for (Map.Entry<String, Location> entry : moved.entrySet()) {
+                if (live.get(entry.getKey()).equals(index.get(entry.getKey()))) {
+                    index.put(entry.getKey(), entry.getValue());
+                } else {
+                    // overwritten while compacting, the copied record is already dead
+                    compacted.dead += entry.getValue().size;
+                }
+            }
+            log.debug(String.format("Compacted %d segments into \"%s\", %d live records", sealed.size(), target.file, moved.size()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (active != null) {
+                active.close();
+                active = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "segment log \"" + directory + "\"";
+    }
+
+    private Path segmentFile(long id) {
+        return directory.resolve(String.format("%016d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int checksum(int keyLength, int valueLength, byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+        crc.update(key);
+        crc.update(value);
+        return (int) crc.getValue();
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path file;
+        long size;
+        long dead;
+
+        Segment(long id, Path file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    private static final class Location {
+        final long segment;
+        final long offset;
+        final int size;
+
+        Location(long segment, long offset, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Location)) {
+                return false;
+            }
+            Location other = (Location) o;
+            return segment == other.segment && offset == other.offset && size == other.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(segment, offset, size);
+        }
+    }
+}
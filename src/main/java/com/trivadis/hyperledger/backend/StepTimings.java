@@ -0,0 +1,144 @@
+package com.trivadis.hyperledger.backend;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Collects how long the named steps of a pipeline take. Safe to use from many threads.
+ * <p>
+ * Percentiles are taken from a uniform sample of at most {@value #MAX_SAMPLES} durations per step, so
+ * they are exact for smaller runs and a close estimate for bigger ones.
+ */
+public class StepTimings {
+
+    private static final int MAX_SAMPLES = 1 << 16;
+    private static final int INITIAL_SAMPLES = 16;
+
+    private final Map<String, Step> steps = new ConcurrentHashMap<>();
+    private final List<ObjLongConsumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Run a step and record how long it took, whether it succeeded or not.
+     */
+    public <T> T time(String step, Callable<T> call) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            record(step, System.nanoTime() - start);
+        }
+    }
+
+    public void record(String step, long nanos) {
+        steps.computeIfAbsent(step, s -> new Step()).record(nanos);
+        for (ObjLongConsumer<String> listener : listeners) {
+            listener.accept(step, nanos);
+        }
+    }
+
+    /**
+     * Also hand every recorded duration to the listener, e.g. to keep a histogram of it. Called on the
+     * recording thread, it must not block.
+     */
+    public void addListener(ObjLongConsumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return number of times the step was recorded.
+     */
+    public long getCount(String step) {
+        Step s = steps.get(step);
+        return s == null ? 0 : s.count();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the duration in nanoseconds that the given percentage of the recorded steps didn't exceed,
+     * 0 if nothing was recorded.
+     */
+    public long getPercentile(String step, double percentile) {
+        Step s = steps.get(step);
+        return s == null ? 0 : s.snapshot().percentile(percentile);
+    }
+
+    /**
+     * @return one line per step with count, mean, p50, p99 and max in milliseconds.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Step> entry : new TreeMap<>(steps).entrySet()) {
+            Snapshot snapshot = entry.getValue().snapshot();
+            sb.append(String.format("%-24s count=%d mean=%.1fms p50=%.1fms p99=%.1fms max=%.1fms%n", entry.getKey(),
+                    snapshot.count, snapshot.count == 0 ? 0.0 : millis(snapshot.total) / snapshot.count,
+                    millis(snapshot.percentile(50)), millis(snapshot.percentile(99)), millis(snapshot.max)));
+        }
+        return sb.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static final class Step {
+        private long count;
+        private long total;
+        private long max;
+        // grown as needed, a step recorded a few times doesn't hold a full sample
+        private long[] samples = new long[INITIAL_SAMPLES];
+
+        synchronized void record(long nanos) {
+            // reservoir sampling keeps every recorded duration equally likely to be in the sample
+            if (count < MAX_SAMPLES) {
+                if (count == samples.length) {
+                    samples = Arrays.copyOf(samples, (int) Math.min(MAX_SAMPLES, count * 2));
+                }
+                samples[(int) count] = nanos;
+            } else {
+                long slot = ThreadLocalRandom.current().nextLong(count + 1);
+                if (slot < MAX_SAMPLES) {
+                    samples[(int) slot] = nanos;
+                }
+            }
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        synchronized Snapshot snapshot() {
+            long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, MAX_SAMPLES));
+            Arrays.sort(sorted);
+            return new Snapshot(count, total, max, sorted);
+        }
+    }
+
+    private static final class Snapshot {
+        final long count;
+        final long total;
+        final long max;
+        final long[] sorted;
+
+        Snapshot(long count, long total, long max, long[] sorted) {
+            this.count = count;
+            this.total = total;
+            this.max = max;
+            this.sorted = sorted;
+        }
+
+        long percentile(double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+    }
+}
@@ -45,6 +45,50 @@ public class TestConfig {
     private static final String INVOKEWAITTIME = PROPBASE + "InvokeWaitTime";
     private static final String DEPLOYWAITTIME = PROPBASE + "DeployWaitTime";
     private static final String PROPOSALWAITTIME = PROPBASE + "ProposalWaitTime";
+    private static final String ENDORSEMENTWAITPERCENTILE = PROPBASE + "EndorsementWaitPercentile";
+    private static final String ENDORSEMENTSPAREPEERS = PROPBASE + "EndorsementSparePeers";
+    private static final String TRANSACTIONBATCHSIZE = PROPBASE + "TransactionBatchSize";
+    private static final String TRANSACTIONBATCHLINGERTIME = PROPBASE + "TransactionBatchLingerTime";
+    private static final String ENROLLMENTPARALLELISM = PROPBASE + "EnrollmentParallelism";
+    private static final String MAXTRANSACTIONSINFLIGHT = PROPBASE + "MaxTransactionsInFlight";
+    private static final String QUERYHEDGEPERCENTILE = PROPBASE + "QueryHedgePercentile";
+    private static final String PEEREJECTFAILURES = PROPBASE + "PeerEjectFailures";
+    private static final String PEEREJECTCOOLDOWN = PROPBASE + "PeerEjectCooldown";
+    private static final String QUERYCACHEMAXENTRIES = PROPBASE + "QueryCacheMaxEntries";
+    private static final String QUERYCACHEMAXBYTES = PROPBASE + "QueryCacheMaxBytes";
+    private static final String QUERYCACHEMAXSTALEBLOCKS = PROPBASE + "QueryCacheMaxStaleBlocks";
+    private static final String CONNECTIONPOOLSIZE = PROPBASE + "ConnectionPoolSize";
+    private static final String KEEPALIVETIME = PROPBASE + "KeepAliveTime";
+    private static final String KEEPALIVETIMEOUT = PROPBASE + "KeepAliveTimeout";
+    private static final String FLOWCONTROLWINDOW = PROPBASE + "FlowControlWindow";
+    private static final String MAXINBOUNDMESSAGESIZE = PROPBASE + "MaxInboundMessageSize";
+    private static final String PEEREVENTING = PROPBASE + "PeerEventing";
+    private static final String COMMITTIMERTICK = PROPBASE + "CommitTimerTick";
+    private static final String BLOCKEVENTQUEUESIZE = PROPBASE + "BlockEventQueueSize";
+    private static final String BLOCKEVENTPARALLELISM = PROPBASE + "BlockEventParallelism";
+    private static final String BLOCKEVENTFILTERED = PROPBASE + "BlockEventFiltered";
+    private static final String LOADCHANNEL = PROPBASE + "LoadChannel";
+    private static final String LOADCHAINCODE = PROPBASE + "LoadChaincode";
+    private static final String LOADMODE = PROPBASE + "LoadMode";
+    private static final String LOADRATE = PROPBASE + "LoadRate";
+    private static final String LOADWORKERS = PROPBASE + "LoadWorkers";
+    private static final String LOADDURATION = PROPBASE + "LoadDuration";
+    private static final String LOADKEYSPACE = PROPBASE + "LoadKeySpace";
+    private static final String LOADQUERYRATIO = PROPBASE + "LoadQueryRatio";
+    private static final String LOADSEED = PROPBASE + "LoadSeed";
+    private static final String LOADBATCHED = PROPBASE + "LoadBatched";
+    private static final String LOADOUTPUT = PROPBASE + "LoadOutput";
+
+    private static final String METRICSENABLED = PROPBASE + "MetricsEnabled";
+    private static final String METRICSPORT = PROPBASE + "MetricsPort";
+
+    private static final String CONFLICTRETRIES = PROPBASE + "ConflictRetries";
+    private static final String CONFLICTBACKOFF = PROPBASE + "ConflictBackoff";
+
+    private static final String GATEWAYPORT = PROPBASE + "GatewayPort";
+    private static final String GATEWAYUSER = PROPBASE + "GatewayUser";
+    private static final String GATEWAYBLOCKEVENTS = PROPBASE + "GatewayBlockEvents";
+    private static final String GATEWAY_CHANNEL = PROPBASE + "gateway.channel.";
 
     private static final String INTEGRATIONTESTS_ORG = PROPBASE + "integrationTests.org.";
     private static final Pattern orgPat = Pattern.compile("^" + Pattern.quote(INTEGRATIONTESTS_ORG) + "([^\\.]+)\\.mspid$");
@@ -206,6 +250,266 @@ public class TestConfig {
         return Integer.parseInt(getProperty(PROPOSALWAITTIME));
     }
 
+    public double getEndorsementWaitPercentile() {
+        return Double.parseDouble(getProperty(ENDORSEMENTWAITPERCENTILE));
+    }
+
+    /**
+     * @return peers asked to endorse in addition to the ones the endorsement policy needs.
+     */
+    public int getEndorsementSparePeers() {
+        return Integer.parseInt(getProperty(ENDORSEMENTSPAREPEERS));
+    }
+
+    public int getTransactionBatchSize() {
+        return Integer.parseInt(getProperty(TRANSACTIONBATCHSIZE));
+    }
+
+    /**
+     * @return milliseconds the first invocation of a batch waits for more invocations to join it.
+     */
+    public long getTransactionBatchLingerTime() {
+        return Long.parseLong(getProperty(TRANSACTIONBATCHLINGERTIME));
+    }
+
+    public int getEnrollmentParallelism() {
+        return Integer.parseInt(getProperty(ENROLLMENTPARALLELISM));
+    }
+
+    public int getMaxTransactionsInFlight() {
+        return Integer.parseInt(getProperty(MAXTRANSACTIONSINFLIGHT));
+    }
+
+    public double getQueryHedgePercentile() {
+        return Double.parseDouble(getProperty(QUERYHEDGEPERCENTILE));
+    }
+
+    public int getPeerEjectFailures() {
+        return Integer.parseInt(getProperty(PEEREJECTFAILURES));
+    }
+
+    /**
+     * @return milliseconds a failing peer isn't used.
+     */
+    public long getPeerEjectCooldown() {
+        return Long.parseLong(getProperty(PEEREJECTCOOLDOWN));
+    }
+
+    /**
+     * @return maximum number of cached query results, 0 to not cache queries.
+     */
+    public int getQueryCacheMaxEntries() {
+        return Integer.parseInt(getProperty(QUERYCACHEMAXENTRIES));
+    }
+
+    public long getQueryCacheMaxBytes() {
+        return Long.parseLong(getProperty(QUERYCACHEMAXBYTES));
+    }
+
+    public long getQueryCacheMaxStaleBlocks() {
+        return Long.parseLong(getProperty(QUERYCACHEMAXSTALEBLOCKS));
+    }
+
+    /**
+     * @return connections to every peer and orderer of a channel, each one used by its own copy of the channel.
+     */
+    public int getConnectionPoolSize() {
+        return Integer.parseInt(getProperty(CONNECTIONPOOLSIZE));
+    }
+
+    /**
+     * @return milliseconds without reads after which the endpoint is pinged.
+     */
+    public long getKeepAliveTime(String endpointName) {
+        return Long.parseLong(getEndpointProperty(KEEPALIVETIME, endpointName));
+    }
+
+    /**
+     * @return milliseconds to wait for the answer to a ping before the connection is closed.
+     */
+    public long getKeepAliveTimeout(String endpointName) {
+        return Long.parseLong(getEndpointProperty(KEEPALIVETIMEOUT, endpointName));
+    }
+
+    /**
+     * @return bytes the endpoint may send on a connection before the client acknowledges them.
+     */
+    public int getFlowControlWindow(String endpointName) {
+        return Integer.parseInt(getEndpointProperty(FLOWCONTROLWINDOW, endpointName));
+    }
+
+    public int getMaxInboundMessageSize(String endpointName) {
+        return Integer.parseInt(getEndpointProperty(MAXINBOUNDMESSAGESIZE, endpointName));
+    }
+
+    /**
+     * @return true to receive events from the peers instead of their event hubs.
+     */
+    public boolean isPeerEventing() {
+        return Boolean.parseBoolean(getProperty(PEEREVENTING));
+    }
+
+    /**
+     * @return the value of {@code <property>.<endpoint name>} if set, the value of the property otherwise.
+     */
+    private String getEndpointProperty(String property, String endpointName) {
+        String ret = sdkProperties.getProperty(property + "." + endpointName);
+        return ret != null ? ret : getProperty(property);
+    }
+
+    /**
+     * @return milliseconds between checks for transactions not committed in time.
+     */
+    public long getCommitTimerTick() {
+        return Long.parseLong(getProperty(COMMITTIMERTICK));
+    }
+
+    /**
+     * @return blocks received but not yet processed before the event stream is held back.
+     */
+    public int getBlockEventQueueSize() {
+        return Integer.parseInt(getProperty(BLOCKEVENTQUEUESIZE));
+    }
+
+    /**
+     * @return threads handling the transactions of blocks, 0 for one per processor.
+     */
+    public int getBlockEventParallelism() {
+        return Integer.parseInt(getProperty(BLOCKEVENTPARALLELISM));
+    }
+
+    /**
+     * @return true to receive filtered blocks, without read/write sets.
+     */
+    public boolean isBlockEventFiltered() {
+        return Boolean.parseBoolean(getProperty(BLOCKEVENTFILTERED));
+    }
+
+    public String getLoadChannel() {
+        return getProperty(LOADCHANNEL);
+    }
+
+    public String getLoadChaincode() {
+        return getProperty(LOADCHAINCODE);
+    }
+
+    /**
+     * @return "open" for a fixed rate of operations, "closed" for a fixed number of workers.
+     */
+    public String getLoadMode() {
+        return getProperty(LOADMODE);
+    }
+
+    /**
+     * @return operations per second of an open loop.
+     */
+    public double getLoadRate() {
+        return Double.parseDouble(getProperty(LOADRATE));
+    }
+
+    public int getLoadWorkers() {
+        return Integer.parseInt(getProperty(LOADWORKERS));
+    }
+
+    /**
+     * @return milliseconds the load runs.
+     */
+    public long getLoadDuration() {
+        return Long.parseLong(getProperty(LOADDURATION));
+    }
+
+    /**
+     * @return number of accounts the load spreads over.
+     */
+    public int getLoadKeySpace() {
+        return Integer.parseInt(getProperty(LOADKEYSPACE));
+    }
+
+    /**
+     * @return fraction of the operations that are queries, between 0 and 1.
+     */
+    public double getLoadQueryRatio() {
+        return Double.parseDouble(getProperty(LOADQUERYRATIO));
+    }
+
+    /**
+     * @return true to create the accounts before the load runs.
+     */
+    public boolean isLoadSeed() {
+        return Boolean.parseBoolean(getProperty(LOADSEED));
+    }
+
+    /**
+     * @return true to send the invokes through a {@link TransactionBatcher} instead of one by one.
+     */
+    public boolean isLoadBatched() {
+        return Boolean.parseBoolean(getProperty(LOADBATCHED));
+    }
+
+    /**
+     * @return path of the report without extension.
+     */
+    public String getLoadOutput() {
+        return getProperty(LOADOUTPUT);
+    }
+
+    /**
+     * @return true to record metrics and serve them for Prometheus.
+     */
+    public boolean isMetricsEnabled() {
+        return Boolean.parseBoolean(getProperty(METRICSENABLED));
+    }
+
+    public int getMetricsPort() {
+        return Integer.parseInt(getProperty(METRICSPORT));
+    }
+
+    /**
+     * @return times a transaction invalidated by a read conflict is tried again.
+     */
+    public int getConflictRetries() {
+        return Integer.parseInt(getProperty(CONFLICTRETRIES));
+    }
+
+    /**
+     * @return milliseconds to wait at most before the first retry of a transaction with a read conflict.
+     */
+    public long getConflictBackoff() {
+        return Long.parseLong(getProperty(CONFLICTBACKOFF));
+    }
+
+    public int getGatewayPort() {
+        return Integer.parseInt(getProperty(GATEWAYPORT));
+    }
+
+    /**
+     * @return name of the user the gateway invokes and queries as, in every org.
+     */
+    public String getGatewayUser() {
+        return getProperty(GATEWAYUSER);
+    }
+
+    /**
+     * @return true for the gateway to follow the committed transactions of its channels.
+     */
+    public boolean isGatewayBlockEvents() {
+        return Boolean.parseBoolean(getProperty(GATEWAYBLOCKEVENTS));
+    }
+
+    /**
+     * @return the channels the gateway serves, each one with the names of the orgs whose peers joined it.
+     */
+    public Map<String, List<String>> getGatewayChannels() {
+        Map<String, List<String>> channels = new TreeMap<>();
+        for (String key : sdkProperties.stringPropertyNames()) {
+            if (key.startsWith(GATEWAY_CHANNEL)) {
+                channels.put(key.substring(GATEWAY_CHANNEL.length()),
+                        Arrays.asList(sdkProperties.getProperty(key).trim().split("[ \t]*,[ \t]*")));
+            }
+        }
+        return channels;
+    }
+
     public Collection<SampleOrg> getIntegrationTestsSampleOrgs() {
         return Collections.unmodifiableCollection(sampleOrgs.values());
     }
@@ -0,0 +1,173 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects invocations submitted at a high rate into batches in front of a {@link TransactionSubmitter}.
+ * <p>
+ * A batch is flushed once it holds {@link TestConfig#getTransactionBatchSize()} invocations or its first
+ * invocation has waited {@link TestConfig#getTransactionBatchLingerTime()} milliseconds. All invocations of
+ * a batch are endorsed in parallel, and once the whole batch is endorsed the transactions are sent to
+ * the orderer back to back in the order they were submitted. Every caller gets the commit future of its
+ * own transaction; one failing transaction doesn't fail the others of its batch. Invocations count
+ * against the in flight limit of the submitter from the moment they are queued.
+ */
+public class TransactionBatcher implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionBatcher.class);
+
+    private final TransactionSubmitter submitter;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batched = new LongAdder();
+
+    public TransactionBatcher(TestConfig testConfig, TransactionSubmitter submitter) {
+        this(submitter, testConfig.getTransactionBatchSize(), testConfig.getTransactionBatchLingerTime());
+    }
+
+    /**
+     * @param maxBatchSize    flush once this many invocations are waiting
+     * @param maxLingerMillis flush once the first waiting invocation has waited this long
+     */
+    public TransactionBatcher(TransactionSubmitter submitter, int maxBatchSize, long maxLingerMillis) {
+        this.submitter = submitter;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+        this.flusher = new Thread(this::run, "TransactionBatcher-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    private static final class Pending {
+        final ChaincodeInvocation invocation;
+        final CompletableFuture<TransactionSubmitter.Result> result = new CompletableFuture<>();
+
+        Pending(ChaincodeInvocation invocation) {
+            this.invocation = invocation;
+        }
+    }
+
+    /**
+     * Queue the invocation for the next batch, waiting first if the maximum number of transactions is in
+     * flight.
+     *
+     * @return completes once the transaction is committed or failed
+     */
+    public CompletableFuture<TransactionSubmitter.Result> submit(ChaincodeInvocation invocation) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("TransactionBatcher is closed");
+        }
+        submitter.acquire();
+        Pending pending = new Pending(invocation);
+        CompletableFuture<TransactionSubmitter.Result> tracked = submitter.track(invocation, System.nanoTime(), pending.result);
+        queue.add(pending);
+        return tracked;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                final long deadline = System.nanoTime() + maxLingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(new ArrayList<>(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                log.error("could not flush batch", e);
+                for (Pending pending : batch) {
+                    pending.result.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        batches.increment();
+        batched.add(batch.size());
+
+        List<CompletableFuture<Collection<ProposalResponse>>> endorsements = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            endorsements.add(submitter.endorseAsync(pending.invocation));
+        }
+
+        // allOf completes once every endorsement is done, whether it succeeded or not
+        CompletableFuture.allOf(endorsements.toArray(new CompletableFuture[0])).whenComplete((v, ignored) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                final Pending pending = batch.get(i);
+                final CompletableFuture<Collection<ProposalResponse>> endorsement = endorsements.get(i);
+                if (pending.result.isDone()) { // timed out while waiting for the batch
+                    continue;
+                }
+                try {
+                    submitter.order(pending.invocation, endorsement.join()).whenComplete((result, e) -> {
+                        if (e != null) {
+                            pending.result.completeExceptionally(e);
+                        } else {
+                            pending.result.complete(result);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    pending.result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return mean number of invocations per flushed batch.
+     */
+    public double getMeanBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0.0 : batched.sum() / (double) count;
+    }
+
+    /**
+     * Flush what is queued and stop taking invocations. Transactions already flushed are not waited for,
+     * see {@link TransactionSubmitter#close()}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Pending late;
+        while ((late = queue.poll()) != null) { // queued while closing
+            late.result.completeExceptionally(new IllegalStateException("TransactionBatcher is closed"));
+        }
+        log.info(String.format("Flushed %d batches, mean batch size %.1f", batches.sum(), getMeanBatchSize()));
+    }
+}
@@ -0,0 +1,324 @@
+package com.trivadis.hyperledger.backend;
+
+import org.hyperledger.fabric.sdk.*;
+import org.hyperledger.fabric.sdk.exception.ProposalException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hyperledger.fabric.sdk.Channel.NOfEvents.createNoEvents;
+import static org.hyperledger.fabric.sdk.Channel.TransactionOptions.createTransactionOptions;
+
+/**
+ * Endorses chaincode invocations and sends them to the orderer without waiting for one transaction to
+ * commit before the next one starts.
+ * <p>
+ * Proposals are endorsed on a small executor by an {@link EndorsementCollector}, by the peers an
+ * {@link EndorsementPlanner} picks or by all endorsing peers without one. The endorsed transaction is
+ * handed to the orderer with {@link Channel#sendTransaction}, whose future completes once the transaction is
+ * committed, or with a {@link CommitTracker} shared by the channel's submitters, the orderer only takes the
+ * transaction and the tracker follows its commit. At most {@link TestConfig#getMaxTransactionsInFlight()} transactions are between endorsement
+ * and commit; {@link #submit} blocks the caller while that many are in flight, which keeps a fast
+ * producer from piling up work the network can't take.
+ */
+public class TransactionSubmitter implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionSubmitter.class);
+
+    public static final String ENDORSE_STEP = "endorse";
+    public static final String COMMIT_STEP = "order and commit";
+    // the two parts of the commit step are timed as well
+    public static final String ORDER_STEP = "order";
+    public static final String VALIDATE_STEP = "validate and commit";
+
+    private final HFClient client;
+    private final Channel channel;
+    private final ChaincodeID chaincodeID;
+    private final TransactionRequest.Type chaincodeLanguage;
+    private final long transactionWaitTime;
+    private final int maxInFlight;
+    private final EndorsementCollector collector;
+    private final CommitTracker commitTracker;
+
+    private final Semaphore inFlight;
+    private final ExecutorService endorser;
+    private final ScheduledExecutorService timer;
+    private final StepTimings timings = new StepTimings();
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public TransactionSubmitter(TestConfig testConfig, HFClient client, Channel channel, ChaincodeID chaincodeID,
+                                TransactionRequest.Type chaincodeLanguage) {
+        this(testConfig, client, channel, chaincodeID, chaincodeLanguage, null);
+    }
+
+    /**
+     * @param planner picks the endorsing peers of each proposal, null to send every proposal to all
+     *                endorsing peers of the channel
+     */
+    public TransactionSubmitter(TestConfig testConfig, HFClient client, Channel channel, ChaincodeID chaincodeID,
+                                TransactionRequest.Type chaincodeLanguage, EndorsementPlanner planner) {
+        this(testConfig, client, channel, chaincodeID, chaincodeLanguage, planner, null);
+    }
+
+    /**
+     * @param planner       picks the endorsing peers of each proposal, null to send every proposal to all
+     *                      endorsing peers of the channel
+     * @param commitTracker follows the commits and timeouts of the transactions, null to have the SDK wait
+     *                      for each commit
+     */
+    public TransactionSubmitter(TestConfig testConfig, HFClient client, Channel channel, ChaincodeID chaincodeID,
+                                TransactionRequest.Type chaincodeLanguage, EndorsementPlanner planner,
+                                CommitTracker commitTracker) {
+        this.client = client;
+        this.commitTracker = commitTracker;
+        this.channel = channel;
+        this.collector = new EndorsementCollector(testConfig, channel, planner);
+        this.chaincodeID = chaincodeID;
+        this.chaincodeLanguage = chaincodeLanguage;
+        this.transactionWaitTime = testConfig.getTransactionWaitTime();
+        this.maxInFlight = testConfig.getMaxTransactionsInFlight();
+        this.inFlight = new Semaphore(maxInFlight);
+        // only endorsement blocks a thread, ordering and commit are followed by the SDK's own futures
+        this.endorser = Executors.newFixedThreadPool(Math.min(maxInFlight, Runtime.getRuntime().availableProcessors() * 4), r -> {
+            Thread thread = new Thread(r, "TransactionSubmitter-endorser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "TransactionSubmitter-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Outcome of a committed transaction.
+     */
+    public static final class Result {
+        private final byte[] payload;
+        private final BlockEvent.TransactionEvent transactionEvent;
+
+        Result(byte[] payload, BlockEvent.TransactionEvent transactionEvent) {
+            this.payload = payload;
+            this.transactionEvent = transactionEvent;
+        }
+
+        /**
+         * @return the data returned by the chaincode, may be null.
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public String getPayloadAsString() {
+            return payload == null ? null : new String(payload, UTF_8);
+        }
+
+        public BlockEvent.TransactionEvent getTransactionEvent() {
+            return transactionEvent;
+        }
+    }
+
+    /**
+     * Start endorsing the invocation, waiting first if the maximum number of transactions is in flight.
+     *
+     * @return completes once the transaction is committed, or exceptionally if endorsement, ordering or
+     * validation failed or the transaction wait time passed.
+     */
+    public CompletableFuture<Result> submit(ChaincodeInvocation invocation) throws InterruptedException {
+        acquire();
+        final long start = System.nanoTime();
+
+        CompletableFuture<Result> result;
+        try {
+            result = endorseAsync(invocation).thenCompose(successful -> order(invocation, successful));
+        } catch (RuntimeException e) { // the endorser is shut down
+            inFlight.release();
+            throw e;
+        }
+        return track(invocation, start, result);
+    }
+
+    /**
+     * Submit the invocation and call back once it is committed or failed. The callback runs on an SDK or
+     * submitter thread and must not block.
+     */
+    public void submit(ChaincodeInvocation invocation, BiConsumer<Result, Throwable> callback) throws InterruptedException {
+        submit(invocation).whenComplete(callback);
+    }
+
+    /**
+     * Take one of the in flight slots, to be given back by {@link #track}.
+     */
+    void acquire() throws InterruptedException {
+        inFlight.acquire();
+    }
+
+    /**
+     * Time out the transaction after the transaction wait time, unless the commit tracker does, count its
+     * outcome and give back its in flight slot once it completes.
+     */
+    CompletableFuture<Result> track(ChaincodeInvocation invocation, long start, CompletableFuture<Result> result) {
+        final ScheduledFuture<?> timeout = commitTracker != null ? null : timer.schedule(() -> result.completeExceptionally(
+                new TimeoutException(String.format("Transaction %s not committed within %d seconds", invocation, transactionWaitTime))),
+                transactionWaitTime, TimeUnit.SECONDS);
+
+        return result.whenComplete((r, e) -> {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            inFlight.release();
+            record("total", invocation, r != null ? r.getTransactionEvent().getTransactionID() : null, System.nanoTime() - start);
+            if (e != null) {
+                failed.increment();
+                log.warn(String.format("Transaction %s failed: %s", invocation, e.getMessage()));
+            } else {
+                committed.increment();
+            }
+        });
+    }
+
+    /**
+     * Endorse the invocation on the endorser executor.
+     *
+     * @return the successful and consistent endorsements
+     */
+    CompletableFuture<Collection<ProposalResponse>> endorseAsync(ChaincodeInvocation invocation) {
+        return CompletableFuture.supplyAsync(() -> endorse(invocation), endorser);
+    }
+
+    /**
+     * Send the endorsed transaction to the orderer.
+     *
+     * @return completes once the transaction is committed
+     */
+    CompletableFuture<Result> order(ChaincodeInvocation invocation, Collection<ProposalResponse> successful) {
+        final long ordered = System.nanoTime();
+        final User user = invocation.getUserContext() != null ? invocation.getUserContext() : client.getUserContext();
+        final String transactionId = successful.iterator().next().getTransactionID();
+        final CompletableFuture<BlockEvent.TransactionEvent> committed;
+        if (commitTracker == null) {
+            // the SDK broadcasts to the orderer before it returns, the future completes with the commit event
+            final CompletableFuture<BlockEvent.TransactionEvent> sent =
+                    channel.sendTransaction(successful, createTransactionOptions().userContext(user));
+            final long accepted = System.nanoTime();
+            if (!sent.isCompletedExceptionally()) {
+                record(ORDER_STEP, invocation, transactionId, accepted - ordered);
+            }
+            committed = sent.whenComplete((transactionEvent, e) -> {
+                if (e == null) {
+                    record(VALIDATE_STEP, invocation, transactionId, System.nanoTime() - accepted);
+                }
+            });
+        } else {
+            // tracked before it is sent, its block can't come first
+            final AtomicLong accepted = new AtomicLong(ordered);
+            committed = commitTracker.track(transactionId, TimeUnit.SECONDS.toMillis(transactionWaitTime))
+                    .whenComplete((transactionEvent, e) -> {
+                        if (e == null) {
+                            record(VALIDATE_STEP, invocation, transactionId, System.nanoTime() - accepted.get());
+                        }
+                    });
+            channel.sendTransaction(successful, createTransactionOptions().userContext(user).nOfEvents(createNoEvents()))
+                    .whenComplete((ignored, e) -> {
+                        if (e != null) {
+                            commitTracker.fail(transactionId, e);
+                        } else {
+                            accepted.set(System.nanoTime());
+                            record(ORDER_STEP, invocation, transactionId, accepted.get() - ordered);
+                        }
+                    });
+        }
+        return committed
+                .thenApply(transactionEvent -> {
+                    record(COMMIT_STEP, invocation, transactionId, System.nanoTime() - ordered);
+                    return new Result(successful.iterator().next().getChaincodeActionResponsePayload(), transactionEvent);
+                });
+    }
+
+    private Collection<ProposalResponse> endorse(ChaincodeInvocation invocation) {
+        final long start = System.nanoTime();
+        Collection<ProposalResponse> endorsed = null;
+        try {
+            TransactionProposalRequest request = client.newTransactionProposalRequest();
+            request.setChaincodeID(chaincodeID);
+            request.setChaincodeLanguage(chaincodeLanguage);
+            request.setFcn(invocation.getFcn());
+            request.setArgs(invocation.getArgs());
+            request.setTransientMap(invocation.getTransientMap());
+            if (invocation.getUserContext() != null) {
+                request.setUserContext(invocation.getUserContext());
+            }
+
+            endorsed = collector.collect(request);
+            return endorsed;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            record(ENDORSE_STEP, invocation, endorsed != null ? endorsed.iterator().next().getTransactionID() : null,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record the step in the submitter's timings and, if enabled, in the metrics and the transaction's trace.
+     *
+     * @param transactionId null if the transaction failed before it got one
+     */
+    private void record(String step, ChaincodeInvocation invocation, String transactionId, long nanos) {
+        timings.record(step, nanos);
+        if (Metrics.isEnabled()) {
+            Metrics.record("fabric.transaction", nanos, "channel", channel.getName(), "function", String.valueOf(invocation.getFcn()), "step", step);
+            if (transactionId != null) {
+                Metrics.trace(transactionId, step, nanos);
+            }
+        }
+    }
+
+    /**
+     * Wait until every submitted transaction is committed or failed.
+     */
+    public void drain() throws InterruptedException {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getCommittedCount() {
+        return committed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public StepTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * Wait for the transactions in flight, then stop the submitter's threads.
+     */
+    @Override
+    public void close() {
+        try {
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        endorser.shutdown();
+        timer.shutdownNow();
+        log.info(String.format("Transactions committed=%d failed=%d%n%s", getCommittedCount(), getFailedCount(), timings.report()));
+    }
+}